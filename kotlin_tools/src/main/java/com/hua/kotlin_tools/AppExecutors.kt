@@ -0,0 +1,139 @@
+package com.hua.kotlin_tools
+
+import android.os.Process
+import io.reactivex.Scheduler
+import io.reactivex.plugins.RxJavaPlugins
+import io.reactivex.schedulers.Schedulers
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 全局线程池。
+ *
+ * [Schedulers.io]和[kotlinx.coroutines.Dispatchers.IO]是两套互相独立、不限数量的线程池，
+ * 高负载时进程内会有上百个线程抢几个核。这里统一提供磁盘、网络、计算三条有界的线程通道，
+ * RxJava和协程共用同一批线程：
+ *
+ * 1. [async]、[globalLaunchIO]、[BaseViewModel.launchIO]默认走[ioScheduler]/[ioDispatcher]；
+ * 1. 调用[installRxJavaPlugins]后，[Schedulers.io]和[Schedulers.computation]也会被替换成这里的线程池。
+ *
+ * 如需修改线程数，请在第一次使用前（一般是Application.onCreate）调用[configure]。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-02 10:15
+ */
+
+object AppExecutors {
+
+    class Config(
+            val diskThreads: Int = 2,
+            val networkThreads: Int = 8,
+            val cpuThreads: Int = Math.max(2, Runtime.getRuntime().availableProcessors()),
+            val keepAliveSeconds: Long = 30
+    )
+
+    @Volatile
+    private var mConfig = Config()
+
+    @Volatile
+    private var mCreated = false
+
+    /**
+     * 读写文件、数据库
+     */
+    @JvmStatic
+    val disk: ThreadPoolExecutor by lazy {
+        newLane("disk", mConfig.diskThreads, Process.THREAD_PRIORITY_BACKGROUND)
+    }
+
+    /**
+     * 网络请求等以阻塞等待为主的任务
+     */
+    @JvmStatic
+    val network: ThreadPoolExecutor by lazy {
+        newLane("network", mConfig.networkThreads, Process.THREAD_PRIORITY_BACKGROUND)
+    }
+
+    /**
+     * 计算密集型任务，线程数与cpu核数一致
+     */
+    @JvmStatic
+    val cpu: ThreadPoolExecutor by lazy {
+        newLane("cpu", mConfig.cpuThreads, Process.THREAD_PRIORITY_DEFAULT)
+    }
+
+    @JvmStatic
+    val diskScheduler: Scheduler by lazy { Schedulers.from(disk) }
+
+    @JvmStatic
+    val networkScheduler: Scheduler by lazy { Schedulers.from(network) }
+
+    @JvmStatic
+    val cpuScheduler: Scheduler by lazy { Schedulers.from(cpu) }
+
+    val diskDispatcher: CoroutineDispatcher by lazy { disk.asCoroutineDispatcher() }
+
+    val networkDispatcher: CoroutineDispatcher by lazy { network.asCoroutineDispatcher() }
+
+    val cpuDispatcher: CoroutineDispatcher by lazy { cpu.asCoroutineDispatcher() }
+
+    /**
+     * 不区分类型的io任务默认走网络通道，它的线程数最多，适合阻塞等待。
+     */
+    @JvmStatic
+    val ioScheduler: Scheduler
+        get() = networkScheduler
+
+    val ioDispatcher: CoroutineDispatcher
+        get() = networkDispatcher
+
+    /**
+     * 必须在任何线程池创建之前调用，否则抛出异常。
+     */
+    @JvmStatic
+    fun configure(config: Config) {
+        if (mCreated) {
+            throw IllegalStateException("configure() must be called before any executor is used")
+        }
+        mConfig = config
+    }
+
+    /**
+     * 让[Schedulers.io]和[Schedulers.computation]也使用这里的线程池，
+     * 第三方库中直接写死的Schedulers.io()也会被收拢。
+     */
+    @JvmStatic
+    fun installRxJavaPlugins() {
+        RxJavaPlugins.setIoSchedulerHandler { ioScheduler }
+        RxJavaPlugins.setComputationSchedulerHandler { cpuScheduler }
+    }
+
+    private fun newLane(name: String, threads: Int, priority: Int): ThreadPoolExecutor {
+        mCreated = true
+        val size = Math.max(1, threads)
+        return ThreadPoolExecutor(size, size,
+                mConfig.keepAliveSeconds, TimeUnit.SECONDS,
+                LinkedBlockingQueue<Runnable>(),
+                LaneThreadFactory(name, priority)).apply {
+            allowCoreThreadTimeOut(true)
+        }
+    }
+
+    private class LaneThreadFactory(private val name: String,
+                                    private val priority: Int) : ThreadFactory {
+        private val mCount = AtomicInteger()
+
+        override fun newThread(r: Runnable): Thread {
+            return Thread({
+                Process.setThreadPriority(priority)
+                r.run()
+            }, "$name-${mCount.incrementAndGet()}")
+        }
+    }
+}
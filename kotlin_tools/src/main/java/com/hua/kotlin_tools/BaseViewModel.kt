@@ -2,11 +2,11 @@ package com.hua.kotlin_tools
 
 import android.app.Application
 import android.graphics.drawable.Drawable
-import android.os.Build
 import android.os.Handler
 import android.os.Looper
 import androidx.annotation.ColorRes
 import androidx.annotation.DrawableRes
+import androidx.annotation.MainThread
 import androidx.annotation.StringRes
 import androidx.databinding.ObservableField
 import androidx.lifecycle.*
@@ -17,6 +17,7 @@ import tv.focal.base.thirdparty.rxbus.RxBus2
 import tv.focal.base.util.LogUtil
 import java.lang.Runnable
 import java.util.function.Consumer
+import kotlin.coroutines.CoroutineContext
 
 /**
  * @author zhangsh
@@ -32,47 +33,162 @@ open class BaseViewModel(private val app: Application) : AndroidViewModel(app) {
 
     private val mDisposables = CompositeDisposable()
 
+    /**
+     * 通过key启动的还没结束的任务，按启动顺序排列，key下所有任务都结束时移除
+     */
+    private val mActiveJobs = HashMap<String, ArrayList<Job>>()
+
+    /**
+     * [launchIO]使用的调度器，界面不可见时暂停，见[attachLifecycle]
+     */
+    private val mIODispatcher = PausableDispatcher(AppExecutors.ioDispatcher)
+
+    /**
+     * attach过的界面是否处于STARTED，只在主线程访问
+     */
+    private val mOwners = HashMap<LifecycleOwner, Boolean>()
+
+    @Volatile
+    private var mPaused = false
+
+    /**
+     * 暂停期间收到的事件，每个订阅只保留最新的一个
+     */
+    private val mPendingEvents = LinkedHashMap<Any, () -> Unit>()
+
+    private val mLifecycleObserver = LifecycleEventObserver { owner, event ->
+        when (event) {
+            Lifecycle.Event.ON_START -> mOwners[owner] = true
+            Lifecycle.Event.ON_STOP -> mOwners[owner] = false
+            Lifecycle.Event.ON_DESTROY -> {
+                owner.lifecycle.removeObserver(mLifecycleObserver)
+                mOwners.remove(owner)
+            }
+            else -> return@LifecycleEventObserver
+        }
+        updatePaused()
+    }
+
+    /**
+     * 字符串、颜色和Drawable都通过[ResCache]缓存，配置变化时自动失效
+     */
     fun getString(@StringRes resId: Int): String {
-        return app.getString(resId)
+        return ResCache.getString(app, resId)
     }
 
     fun getColor(@ColorRes resId: Int): Int {
-        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            app.getColor(resId)
-        } else {
-            app.resources.getColor(resId)
-        }
+        return ResCache.getColor(app, resId)
     }
 
+    /**
+     * 返回的Drawable与其他调用方共享状态，修改前先调用mutate()
+     */
     fun getDrawable(@DrawableRes resId: Int): Drawable? {
-        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            app.getDrawable(resId)
-        } else {
-            app.resources.getDrawable(resId)
-        }
+        return ResCache.getDrawable(app, resId)
     }
 
+    /**
+     * @param name 任务名，[TaskMetrics.enabled]时按任务名统计耗时
+     * @param key 不为空时同一个key同时只有一个任务在执行，重复调用按[policy]处理，见[LaunchPolicy]
+     */
     protected fun launch(block: suspend CoroutineScope.() -> Unit,
-                         error: ((Throwable) -> Unit)? = null): Job {
+                         error: ((Throwable) -> Unit)? = null,
+                         name: String? = null,
+                         key: String? = null,
+                         policy: LaunchPolicy = LaunchPolicy.JOIN): Job {
         val handler = CoroutineExceptionHandler { context, e ->
             error?.invoke(e) ?: LogUtil.e(e)
         }
-        return viewModelScope.launch(handler) {
+        return launchKeyed(key, policy, name, handler) {
             block.invoke(this)
         }
     }
 
     protected fun launchIO(block: suspend (CoroutineScope) -> Unit,
-                           error: (suspend (Throwable) -> Unit)? = null) {
-        viewModelScope.launch(Dispatchers.IO) {
+                           error: (suspend (Throwable) -> Unit)? = null,
+                           name: String? = null,
+                           key: String? = null,
+                           policy: LaunchPolicy = LaunchPolicy.JOIN): Job {
+        return launchKeyed(key, policy, name, mIODispatcher) {
             try {
                 block.invoke(this)
+            } catch (e: CancellationException) {
+                // RESTART时被取消，不算错误
+                throw e
             } catch (e: Throwable) {
                 error?.invoke(e)
             }
         }
     }
 
+    /**
+     * 取消[key]对应的所有任务，包括正在执行的和排队中的
+     */
+    protected fun cancelJob(key: String) {
+        // 复制一份，任务结束时会从列表中移除自己
+        val jobs = synchronized(mActiveJobs) {
+            mActiveJobs.remove(key)?.toTypedArray()
+        } ?: return
+        for (job in jobs) {
+            job.cancel()
+        }
+    }
+
+    protected fun isJobActive(key: String): Boolean {
+        synchronized(mActiveJobs) {
+            return mActiveJobs.containsKey(key)
+        }
+    }
+
+    private fun launchKeyed(key: String?,
+                            policy: LaunchPolicy,
+                            name: String?,
+                            context: CoroutineContext,
+                            block: suspend CoroutineScope.() -> Unit): Job {
+        if (key == null) {
+            return viewModelScope.launchTraced(name, context, block)
+        }
+        synchronized(mActiveJobs) {
+            val jobs = mActiveJobs[key]
+            if (jobs != null && policy == LaunchPolicy.JOIN) {
+                return jobs.last()
+            }
+            // 要等前面所有的任务，不能只等最后一个：排队中的任务被取消时马上就结束了，不会等它前面的任务
+            val previous = jobs?.toTypedArray() ?: emptyArray()
+            if (policy == LaunchPolicy.RESTART) {
+                for (running in previous) {
+                    running.cancel()
+                }
+            }
+            val job = viewModelScope.launchTraced(name ?: key, context) {
+                // RESTART时是等它们处理完取消
+                for (running in previous) {
+                    running.join()
+                }
+                block()
+            }
+            // cancelJob之后再启动的任务放到新的列表里
+            val current = jobs ?: ArrayList<Job>(2).also { mActiveJobs[key] = it }
+            current.add(job)
+            job.invokeOnCompletion {
+                synchronized(mActiveJobs) {
+                    current.remove(job)
+                    if (current.isEmpty() && mActiveJobs[key] === current) {
+                        mActiveJobs.remove(key)
+                    }
+                }
+            }
+            return job
+        }
+    }
+
+    /**
+     * 通过[LoaderCache]加载，其他ViewModel或者重建后的ViewModel加载相同id和参数时直接使用缓存
+     */
+    protected suspend fun <T : Any> loadShared(id: String, vararg args: Any?, loader: suspend () -> T): T {
+        return LoaderCache.load(id, *args, loader = loader)
+    }
+
     protected suspend fun runOnMainSync(block: suspend () -> Unit) {
         withContext(Dispatchers.Main) {
             block.invoke()
@@ -98,19 +214,110 @@ open class BaseViewModel(private val app: Application) : AndroidViewModel(app) {
         }, delay)
     }
 
+    /**
+     * 把ViewModel和界面的生命周期关联起来，所有attach的界面都不在STARTED状态时：
+     * 1. [launchIO]启动的协程在下一次调度时停住，界面可见后继续；
+     * 1. [onEvent]收到的事件先存起来，同一个订阅只保留最新的一个，界面可见后再回调。
+     *
+     * 不调用时行为不变。在主线程调用，一般在Activity/Fragment的onCreate中。
+     */
+    @MainThread
+    fun attachLifecycle(owner: LifecycleOwner) {
+        if (owner.lifecycle.currentState == Lifecycle.State.DESTROYED || mOwners.containsKey(owner)) {
+            return
+        }
+        // addObserver会马上补发ON_CREATE、ON_START等事件
+        mOwners[owner] = false
+        owner.lifecycle.addObserver(mLifecycleObserver)
+        updatePaused()
+    }
+
+    /**
+     * 是否因为界面不可见而暂停
+     */
+    val isPaused: Boolean
+        get() = mPaused
+
+    private fun updatePaused() {
+        val paused = mOwners.isNotEmpty() && !mOwners.containsValue(true)
+        if (paused == mPaused) {
+            return
+        }
+        if (paused) {
+            mPaused = true
+            mIODispatcher.pause()
+            return
+        }
+        mIODispatcher.resume()
+        val events = synchronized(mPendingEvents) {
+            mPaused = false
+            ArrayList(mPendingEvents.values).also { mPendingEvents.clear() }
+        }
+        for (event in events) {
+            event()
+        }
+    }
+
     // onClear时取消订阅
     protected fun <T> onEvent(eventClass: Class<T>, onEvent: ((T) -> Unit)) {
+        val subscription = Any()
         val disposable = RxBus2.getDefault().onEvent(eventClass)
-                .subscribeSafe(onEvent)
+                .subscribeSafe { event ->
+                    val deliver = synchronized(mPendingEvents) {
+                        if (mPaused) {
+                            // 先删再加，保证恢复时按最新事件的顺序回调
+                            mPendingEvents.remove(subscription)
+                            mPendingEvents[subscription] = { onEvent(event) }
+                        }
+                        !mPaused
+                    }
+                    if (deliver) {
+                        onEvent(event)
+                    }
+                }
         mDisposables.add(disposable)
     }
 
     override fun onCleared() {
         super.onCleared()
+        // viewModelScope已经取消，暂停期间排队的协程要调度一次才能处理取消并结束，
+        // 否则它们的finally不会执行，join它们的地方也会一直挂起
+        mIODispatcher.resume()
+        mPaused = false
         mDisposables.dispose()
+        for (owner in mOwners.keys) {
+            owner.lifecycle.removeObserver(mLifecycleObserver)
+        }
+        mOwners.clear()
+        synchronized(mPendingEvents) {
+            mPendingEvents.clear()
+        }
     }
 }
 
+/**
+ * 同一个key的任务还在执行时再次启动的处理方式
+ */
+enum class LaunchPolicy {
+    /**
+     * 不启动新任务，直接返回正在执行的任务
+     */
+    JOIN,
+
+    /**
+     * 取消正在执行和排队中的任务，等它们都结束后启动新任务，适合刷新、搜索等只关心最新结果的场景
+     */
+    RESTART,
+
+    /**
+     * 排在正在执行的任务后面，按调用顺序依次执行
+     */
+    QUEUE
+}
+
+/**
+ * 子线程中连续设置时中间值可能丢失，高频更新的状态用[ConflatedState]
+ */
 fun <T> MutableLiveData<T>.set(value: T?) {
     if (isMainThread()) {
         this.value = value
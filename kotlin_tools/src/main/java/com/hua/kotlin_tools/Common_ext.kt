@@ -3,7 +3,6 @@ package com.hua.kotlin_tools
 import android.app.Activity
 import android.content.Context
 import android.content.Intent
-import android.graphics.Color
 import android.graphics.Outline
 import android.graphics.drawable.Drawable
 import android.location.LocationManager
@@ -12,7 +11,6 @@ import android.os.Handler
 import android.os.Looper
 import android.transition.Transition
 import android.util.Log
-import android.util.TypedValue
 import android.view.View
 import android.view.ViewOutlineProvider
 import android.widget.Toast
@@ -40,13 +38,11 @@ fun Int.toDoubleFormatStr(): String {
 }
 
 fun dip2Px(dpValue: Float, context: Context): Int {
-    val density = context.resources.displayMetrics.density
-    return Math.round(dpValue * density)
+    return Math.round(UiResolver.dp2px(context, dpValue))
 }
 
 fun sp2Px(spValue: Float, context: Context): Int {
-    return TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP,
-            spValue, context.resources.displayMetrics).toInt()
+    return UiResolver.sp2px(context, spValue).toInt()
 }
 
 fun isLocationServiceEnable(context: Context): Boolean {
@@ -61,11 +57,7 @@ fun isLocationServiceEnable(context: Context): Boolean {
 @JvmOverloads
 fun debugToast(msg: String?, duration: Int = Toast.LENGTH_SHORT, context: Context) {
     if (BuildConfig.DEBUG && msg != null) {
-        if (isMainThread()) {
-            Toast.makeText(context, msg, duration).show()
-        } else {
-            mMainHandler.post { Toast.makeText(context, msg, duration).show() }
-        }
+        ensureMainThread(batched = true) { Toast.makeText(context, msg, duration).show() }
     }
 }
 
@@ -75,21 +67,26 @@ fun isDebug(): Boolean {
 
 @ColorInt
 fun parseColorAlpha(colorStr: String, @FloatRange(from = 0.0, to = 1.0) alpha: Float? = null): Int {
-    val colorInt = Color.parseColor(colorStr)
-    if (alpha != null) {
-        val red = Color.red(colorInt)
-        val green = Color.green(colorInt)
-        val blue = Color.blue(colorInt)
-        return Color.argb((alpha * 0xff).toInt(), red, green, blue)
-    }
-    return colorInt
+    return UiResolver.parseColor(colorStr, alpha)
 }
 
 val mMainHandler = Handler(Looper.getMainLooper())
 fun isMainThread() = Thread.currentThread() == Looper.getMainLooper().thread
-fun ensureMainThread(block: () -> Unit) {
+
+/**
+ * 在主线程执行[block]，已经在主线程时直接执行。
+ *
+ * 子线程调用时：
+ * 1. 默认通过[mMainHandler]执行，和其他post到[mMainHandler]的block保持提交顺序，也不依赖帧回调；
+ * 1. [batched]为true时交给[MainExecutor]按帧合并执行，适合子线程大量提交的界面更新。
+ * 这时block最早在下一帧执行，和[mMainHandler]上的block之间不保证顺序
+ */
+@JvmOverloads
+fun ensureMainThread(batched: Boolean = false, block: () -> Unit) {
     if (isMainThread()) {
         block()
+    } else if (batched) {
+        MainExecutor.post(block)
     } else {
         mMainHandler.post { block() }
     }
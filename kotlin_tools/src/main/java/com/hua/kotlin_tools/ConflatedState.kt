@@ -0,0 +1,131 @@
+package com.hua.kotlin_tools
+
+import android.view.Choreographer
+import androidx.lifecycle.LiveData
+import androidx.lifecycle.MutableLiveData
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.channels.ConflatedBroadcastChannel
+import kotlinx.coroutines.channels.ReceiveChannel
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * 高频更新的ViewModel状态。
+ *
+ * [MutableLiveData.set]在子线程用postValue，中间值丢不丢取决于主线程什么时候执行，
+ * 值没有变化也会通知观察者。这里：
+ * 1. [value]可以在任意线程设置，不加锁，只是替换一个引用；
+ * 1. 同一帧内的多次设置合并成一次，在下一帧开始时分发最新的值；
+ * 1. 最新的值和上次分发的相等时不分发。相等判断可以用[versionOf]代替equals，
+ *    比如列表数据可以返回一个修改计数，避免逐个比较元素。
+ *
+ * 观察方式有两种：[liveData]，以及[openSubscription]返回的channel。
+ * channel基于[ConflatedBroadcastChannel]，在coroutines 1.1.1中还是实验性API。
+ *
+ * ```
+ * val progress = ConflatedState(0)
+ * // 任意线程
+ * progress.value = percent
+ * ```
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-20 10:40
+ */
+
+@UseExperimental(ExperimentalCoroutinesApi::class)
+class ConflatedState<T : Any> @JvmOverloads constructor(
+        initial: T,
+        private val versionOf: ((T) -> Long)? = null
+) {
+
+    private val mPending = AtomicReference<T>(initial)
+
+    private val mScheduled = AtomicBoolean(false)
+
+    /**
+     * 上一次分发的值，只在主线程访问
+     */
+    private var mLast: T = initial
+
+    private var mLastVersion = versionOf?.invoke(initial) ?: 0L
+
+    private val mLiveData = MutableLiveData<T>(initial)
+
+    private val mChannel = ConflatedBroadcastChannel(initial)
+
+    private val mFrameCallback = Choreographer.FrameCallback { dispatch() }
+
+    /**
+     * Choreographer只能在有Looper的线程获取，子线程先切到主线程再注册
+     */
+    private val mScheduleRunnable = Runnable {
+        Choreographer.getInstance().postFrameCallback(mFrameCallback)
+    }
+
+    /**
+     * 在主线程观察，每帧最多回调一次
+     */
+    val liveData: LiveData<T>
+        get() = mLiveData
+
+    /**
+     * 读取的是最新设置的值，可能还没有分发
+     */
+    var value: T
+        get() = mPending.get()
+        set(value) {
+            mPending.set(value)
+            schedule()
+        }
+
+    /**
+     * 基于当前值原子地更新，[transform]可能被调用多次，不要有副作用
+     */
+    fun update(transform: (T) -> T) {
+        while (true) {
+            val current = mPending.get()
+            val next = transform(current)
+            if (mPending.compareAndSet(current, next)) {
+                break
+            }
+        }
+        schedule()
+    }
+
+    /**
+     * 订阅时马上收到当前分发过的值，消费慢时只保留最新的一个
+     */
+    fun openSubscription(): ReceiveChannel<T> {
+        return mChannel.openSubscription()
+    }
+
+    private fun schedule() {
+        if (!mScheduled.compareAndSet(false, true)) {
+            return
+        }
+        if (isMainThread()) {
+            mScheduleRunnable.run()
+        } else {
+            mMainHandler.post(mScheduleRunnable)
+        }
+    }
+
+    private fun dispatch() {
+        // 先清标记再读值，这之后的设置会安排下一帧
+        mScheduled.set(false)
+        val value = mPending.get()
+        if (versionOf != null) {
+            val version = versionOf.invoke(value)
+            if (version == mLastVersion) {
+                return
+            }
+            mLastVersion = version
+        } else if (value == mLast) {
+            return
+        }
+        mLast = value
+        mLiveData.value = value
+        mChannel.offer(value)
+    }
+}
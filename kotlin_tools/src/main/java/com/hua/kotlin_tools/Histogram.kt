@@ -0,0 +1,92 @@
+package com.hua.kotlin_tools
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * 无锁直方图，按2的幂分桶，可以在任意线程并发[record]。
+ * 单位由调用方决定，百分位取的是所在桶的上界，精度在2倍以内，用于定位问题足够了。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-04 14:20
+ */
+
+class Histogram {
+
+    private val mBuckets = AtomicLongArray(BUCKET_COUNT)
+    private val mCount = AtomicLong()
+    private val mSum = AtomicLong()
+    private val mMax = AtomicLong()
+
+    fun record(value: Long) {
+        val v = Math.max(0L, value)
+        mBuckets.incrementAndGet(bucketOf(v))
+        mCount.incrementAndGet()
+        mSum.addAndGet(v)
+        var max = mMax.get()
+        while (v > max && !mMax.compareAndSet(max, v)) {
+            max = mMax.get()
+        }
+    }
+
+    fun snapshot(): HistogramSnapshot {
+        val buckets = LongArray(BUCKET_COUNT) { mBuckets.get(it) }
+        return HistogramSnapshot(buckets, mCount.get(), mSum.get(), mMax.get())
+    }
+
+    fun reset() {
+        for (i in 0 until BUCKET_COUNT) {
+            mBuckets.set(i, 0)
+        }
+        mCount.set(0)
+        mSum.set(0)
+        mMax.set(0)
+    }
+
+    companion object {
+        private const val BUCKET_COUNT = 64
+
+        /**
+         * 0放在第0个桶，[2^(i-1), 2^i)放在第i个桶
+         */
+        private fun bucketOf(value: Long): Int {
+            return 64 - java.lang.Long.numberOfLeadingZeros(value)
+        }
+    }
+}
+
+class HistogramSnapshot(
+        private val buckets: LongArray,
+        val count: Long,
+        val sum: Long,
+        val max: Long
+) {
+
+    val mean: Long
+        get() = if (count == 0L) 0 else sum / count
+
+    /**
+     * @param percent 取值[0, 100]
+     */
+    fun percentile(percent: Double): Long {
+        if (count == 0L) {
+            return 0
+        }
+        val target = Math.ceil(count * percent / 100.0).toLong().coerceIn(1L, count)
+        var seen = 0L
+        for (i in buckets.indices) {
+            seen += buckets[i]
+            if (seen >= target) {
+                val upper = if (i == 0) 0L else (1L shl i) - 1
+                return Math.min(upper, max)
+            }
+        }
+        return max
+    }
+
+    override fun toString(): String {
+        return "count=$count, mean=$mean, p50=${percentile(50.0)}, " +
+                "p90=${percentile(90.0)}, p99=${percentile(99.0)}, max=$max"
+    }
+}
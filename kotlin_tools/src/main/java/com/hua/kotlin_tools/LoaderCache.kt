@@ -0,0 +1,97 @@
+package com.hua.kotlin_tools
+
+import java.util.Arrays
+
+/**
+ * 进程级的加载结果缓存，多个ViewModel加载同一份数据（用户信息、配置等）时共享结果，
+ * 屏幕旋转重建ViewModel后也直接从内存返回。
+ *
+ * 以loader id加参数作为key，基于[SingleFlight]：
+ * 1. 同一个key并发加载时只执行一次；
+ * 1. 结果缓存[ttlMillis]，之后的[staleMillis]内返回旧值并在后台刷新；
+ * 1. 缓存数量超过[maxSize]时淘汰最久未使用的。
+ *
+ * 参数需要正确实现equals/hashCode，数组按内容比较。
+ *
+ * ```
+ * val profile = LoaderCache.load("user_profile", userId) { api.getProfile(userId) }
+ * ```
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-21 10:30
+ */
+
+object LoaderCache {
+
+    /**
+     * 以下配置需要在第一次使用前设置
+     */
+    @JvmStatic
+    @Volatile
+    var ttlMillis = 5 * 60 * 1000L
+
+    @JvmStatic
+    @Volatile
+    var staleMillis = 30 * 60 * 1000L
+
+    @JvmStatic
+    @Volatile
+    var maxSize = 128
+
+    private class Key(val id: String, val args: Array<out Any?>) {
+
+        private val mHash = 31 * id.hashCode() + Arrays.deepHashCode(args)
+
+        override fun equals(other: Any?): Boolean {
+            return other is Key && other.id == id && Arrays.deepEquals(other.args, args)
+        }
+
+        override fun hashCode(): Int = mHash
+
+        override fun toString(): String = "$id${Arrays.deepToString(args)}"
+    }
+
+    private val mFlight by lazy {
+        SingleFlight<Key, Any>(ttlMillis, maxSize, sGlobalIOScope, staleMillis)
+    }
+
+    /**
+     * 读取缓存，没有时执行[loader]。[loader]在全局的IO scope中执行，调用方被取消不会取消加载，
+     * 所以不要在里面引用Activity等短生命周期的对象。
+     *
+     * @param id 区分不同的加载逻辑，同一个id的[loader]返回类型必须相同
+     */
+    @JvmStatic
+    @Suppress("UNCHECKED_CAST")
+    suspend fun <T : Any> load(id: String, vararg args: Any?, loader: suspend () -> T): T {
+        return mFlight.get(Key(id, args)) { loader() } as T
+    }
+
+    /**
+     * 未过期的缓存，没有时返回null
+     */
+    @JvmStatic
+    @Suppress("UNCHECKED_CAST")
+    fun <T : Any> peek(id: String, vararg args: Any?): T? {
+        return mFlight.peek(Key(id, args)) as T?
+    }
+
+    @JvmStatic
+    fun invalidate(id: String, vararg args: Any?) {
+        mFlight.invalidate(Key(id, args))
+    }
+
+    /**
+     * 清除[id]下所有参数的缓存，比如退出登录后清除用户相关的数据
+     */
+    @JvmStatic
+    fun invalidateAll(id: String) {
+        mFlight.invalidateIf { it.id == id }
+    }
+
+    @JvmStatic
+    fun clear() {
+        mFlight.invalidateAll()
+    }
+}
@@ -0,0 +1,288 @@
+package com.hua.kotlin_tools
+
+import android.os.Looper
+import android.os.Process
+import android.os.SystemClock
+import android.util.Printer
+import java.util.regex.Pattern
+
+/**
+ * 主线程卡顿监控。
+ *
+ * 通过[Looper.setMessageLogging]拿到主线程每条消息的开始和结束：
+ * 1. 消息开始时只写入开始时间和消息序号两个volatile字段，结束时读一次时间，不和其他线程交互；
+ * 1. 一个daemon采样线程每隔[sampleIntervalMs]读取这两个字段，当前消息超过[thresholdMs]还没结束时抓一次主线程堆栈；
+ * 1. 消息结束后按出现最多的堆栈（没有采样时按消息本身）聚合，采样线程每隔[reportIntervalMs]
+ *    通过[LogUtil]输出耗时最多的[topCount]个。
+ *
+ * 正常消息只有两次时间读取和几次volatile写，没有锁、分配和跨线程消息，可以在线上开启。
+ * Looper设置Printer后每条消息会拼接两个日志字符串，这是框架本身的开销，和其他Printer一样。
+ * 注意setMessageLogging只能有一个Printer，会覆盖其他库设置的Printer。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-24 10:30
+ */
+
+object LooperWatchdog {
+
+    private const val TAG = "LooperWatchdog"
+
+    /**
+     * 消息执行超过这个时间才开始采样并记为卡顿，单位毫秒
+     */
+    @JvmStatic
+    @Volatile
+    var thresholdMs = 100L
+
+    @JvmStatic
+    @Volatile
+    var sampleIntervalMs = 20L
+
+    @JvmStatic
+    @Volatile
+    var reportIntervalMs = 60 * 1000L
+
+    @JvmStatic
+    @Volatile
+    var topCount = 10
+
+    /**
+     * 最多保留的卡顿点数量，超过时淘汰总耗时最少的
+     */
+    private const val MAX_OFFENDERS = 64
+
+    /**
+     * 聚合时取堆栈顶部的帧数
+     */
+    private const val SIGNATURE_DEPTH = 12
+
+    private const val MAX_SAMPLES = 50
+
+    private val HASH_CODE = Pattern.compile("@[0-9a-f]+|\\{[0-9a-f]+\\}")
+
+    class Offender internal constructor(val signature: String) {
+        var count = 0
+            internal set
+        var totalMs = 0L
+            internal set
+        var maxMs = 0L
+            internal set
+        var message: String = ""
+            internal set
+        var stack: Array<StackTraceElement>? = null
+            internal set
+
+        override fun toString(): String {
+            val builder = StringBuilder()
+            builder.append("count=").append(count)
+                    .append(" total=").append(totalMs).append("ms")
+                    .append(" max=").append(maxMs).append("ms")
+                    .append(" msg=").append(message)
+            stack?.forEach { builder.append("\n\tat ").append(it) }
+            return builder.toString()
+        }
+    }
+
+    private val mLock = Any()
+
+    private val mOffenders = HashMap<String, Offender>()
+
+    @Volatile
+    private var mSampler: Thread? = null
+
+    /**
+     * 以下字段只在主线程写，采样线程读。
+     * 消息结束时先清零[mMessageStart]，下一条消息开始时先增加[mMessageId]再写[mMessageStart]，
+     * 采样线程读到非零的开始时间时，之前读到的序号要么属于这条消息，要么已经过期
+     */
+    @Volatile
+    private var mMessageStart = 0L
+
+    @Volatile
+    private var mMessageId = 0
+
+    /**
+     * 当前消息的采样，持有[mLock]访问
+     */
+    private val mSamples = ArrayList<Array<StackTraceElement>>()
+
+    private var mSampledMessageId = -1
+
+    private var mDirty = false
+
+    private val mSampleLoop = Runnable {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+        var nextReport = SystemClock.uptimeMillis() + reportIntervalMs
+        while (mSampler === Thread.currentThread()) {
+            try {
+                Thread.sleep(sampleIntervalMs)
+            } catch (e: InterruptedException) {
+                return@Runnable
+            }
+            val messageId = mMessageId
+            val start = mMessageStart
+            val now = SystemClock.uptimeMillis()
+            if (start != 0L && now - start >= thresholdMs) {
+                sample(messageId)
+            }
+            if (now >= nextReport) {
+                report()
+                nextReport = now + reportIntervalMs
+            }
+        }
+    }
+
+    private val mPrinter = Printer { log ->
+        if (log.startsWith(">>>>>")) {
+            onMessageStart()
+        } else if (log.startsWith("<<<<<")) {
+            onMessageEnd(log)
+        }
+    }
+
+    @JvmStatic
+    fun start() {
+        synchronized(mLock) {
+            if (mSampler != null) {
+                return
+            }
+            val sampler = Thread(mSampleLoop, "looper-watchdog")
+            sampler.isDaemon = true
+            mSampler = sampler
+            sampler.start()
+        }
+        Looper.getMainLooper().setMessageLogging(mPrinter)
+    }
+
+    @JvmStatic
+    fun stop() {
+        Looper.getMainLooper().setMessageLogging(null)
+        synchronized(mLock) {
+            val sampler = mSampler
+            mSampler = null
+            sampler?.interrupt()
+            mMessageStart = 0L
+        }
+    }
+
+    /**
+     * 按总耗时排序的卡顿点
+     */
+    @JvmStatic
+    fun topOffenders(count: Int = topCount): List<Offender> {
+        synchronized(mLock) {
+            return mOffenders.values.sortedByDescending { it.totalMs }.take(count)
+        }
+    }
+
+    @JvmStatic
+    fun reset() {
+        synchronized(mLock) {
+            mOffenders.clear()
+            mDirty = false
+        }
+    }
+
+    /**
+     * 输出耗时最多的卡顿点，没有新的卡顿时不输出
+     */
+    @JvmStatic
+    fun report() {
+        val offenders = synchronized(mLock) {
+            if (!mDirty) {
+                return
+            }
+            mDirty = false
+            mOffenders.values.sortedByDescending { it.totalMs }.take(topCount)
+        }
+        val builder = StringBuilder("top ${offenders.size} main thread offenders:")
+        offenders.forEachIndexed { index, offender ->
+            builder.append("\n#").append(index + 1).append(' ').append(offender)
+        }
+        LogUtil.w(TAG, builder.toString())
+    }
+
+    private fun isSampling(messageId: Int): Boolean {
+        return messageId == mMessageId && mMessageStart != 0L
+    }
+
+    /**
+     * 在采样线程执行，抓堆栈期间消息可能已经结束或者换成了下一条，抓完之后再确认一次
+     */
+    private fun sample(messageId: Int) {
+        val stack = Looper.getMainLooper().thread.stackTrace
+        synchronized(mLock) {
+            if (!isSampling(messageId)) {
+                return
+            }
+            if (mSampledMessageId != messageId) {
+                mSamples.clear()
+                mSampledMessageId = messageId
+            }
+            if (mSamples.size < MAX_SAMPLES) {
+                mSamples.add(stack)
+            }
+        }
+    }
+
+    private fun onMessageStart() {
+        mMessageId++
+        mMessageStart = SystemClock.uptimeMillis()
+    }
+
+    private fun onMessageEnd(log: String) {
+        val start = mMessageStart
+        mMessageStart = 0L
+        if (start == 0L) {
+            return
+        }
+        val costMs = SystemClock.uptimeMillis() - start
+        if (costMs >= thresholdMs) {
+            onSlowMessage(log, costMs)
+        }
+    }
+
+    private fun onSlowMessage(log: String, costMs: Long) {
+        // 去掉hashCode，同一个Handler/Runnable的不同实例才能聚合到一起
+        val message = HASH_CODE.matcher(log.removePrefix("<<<<< Finished to ")).replaceAll("")
+        synchronized(mLock) {
+            val samples = if (mSampledMessageId == mMessageId) ArrayList(mSamples) else emptyList<Array<StackTraceElement>>()
+            mSamples.clear()
+            val stack = mostFrequent(samples)
+            val signature = stack?.joinToString("\n") ?: message
+            val offender = mOffenders[signature] ?: Offender(signature).also {
+                if (mOffenders.size >= MAX_OFFENDERS) {
+                    mOffenders.values.minBy { offender -> offender.totalMs }?.let { min ->
+                        mOffenders.remove(min.signature)
+                    }
+                }
+                mOffenders[signature] = it
+            }
+            offender.count++
+            offender.totalMs += costMs
+            if (costMs >= offender.maxMs) {
+                offender.maxMs = costMs
+                offender.message = message
+            }
+            if (stack != null) {
+                offender.stack = stack
+            }
+            mDirty = true
+        }
+    }
+
+    /**
+     * 按顶部[SIGNATURE_DEPTH]帧分组，返回出现次数最多的一组
+     */
+    private fun mostFrequent(samples: List<Array<StackTraceElement>>): Array<StackTraceElement>? {
+        if (samples.isEmpty()) {
+            return null
+        }
+        return samples.map { it.copyOfRange(0, Math.min(SIGNATURE_DEPTH, it.size)) }
+                .groupBy { it.toList() }
+                .maxBy { it.value.size }
+                ?.value
+                ?.first()
+    }
+}
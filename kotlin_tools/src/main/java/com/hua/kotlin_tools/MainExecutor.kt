@@ -0,0 +1,169 @@
+package com.hua.kotlin_tools
+
+import android.view.Choreographer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * 按帧批量执行的主线程Executor。
+ *
+ * 子线程大量结果通过[mMainHandler]切回主线程时，每个block都是一条Looper消息。
+ * 这里把block放进无锁队列，每帧只注册一次Choreographer回调，在回调中一次性执行：
+ * 1. 普通block每帧最多执行[frameBudgetMs]，剩下的留到下一帧；
+ * 1. [executePriority]提交的block放在优先队列，每帧先执行并且不受时间限制；
+ * 1. 统计每帧开始时的队列长度和执行耗时，见[queueDepthSnapshot]、[drainTimeSnapshot]。
+ *
+ * 注意：
+ * 1. block最早在下一帧执行，需要马上执行的还是用[mMainHandler]；
+ * 1. 和[mMainHandler]是两个独立的队列，两边提交的block之间不保证顺序，有先后依赖的要提交到同一边；
+ * 1. 应用在后台或者灭屏时可能收不到帧回调，超过[FRAME_TIMEOUT_MS]没有等到帧时改用Handler执行。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-23 10:15
+ */
+
+object MainExecutor : Executor {
+
+    /**
+     * 每帧执行普通block的最长时间，单位毫秒
+     */
+    @JvmStatic
+    @Volatile
+    var frameBudgetMs = 8L
+
+    private val mQueue = ConcurrentLinkedQueue<Runnable>()
+
+    private val mPriorityQueue = ConcurrentLinkedQueue<Runnable>()
+
+    /**
+     * 两个队列中block的总数，ConcurrentLinkedQueue.size()需要遍历
+     */
+    private val mPending = AtomicInteger()
+
+    private val mScheduled = AtomicBoolean(false)
+
+    /**
+     * 主线程的Choreographer，第一次在主线程注册回调时获取。
+     * postFrameCallback本身是线程安全的，拿到之后子线程可以直接注册
+     */
+    @Volatile
+    private var mChoreographer: Choreographer? = null
+
+    private val mDepth = Histogram()
+
+    /**
+     * 单位微秒
+     */
+    private val mDrainTime = Histogram()
+
+    private val mFrameCallback = Choreographer.FrameCallback {
+        mMainHandler.removeCallbacks(mTimeoutRunnable)
+        drain()
+    }
+
+    private val mScheduleRunnable = Runnable { postFrameCallback() }
+
+    /**
+     * 等不到帧回调时的兜底，和[mFrameCallback]都在主线程执行，哪个先到就取消另一个
+     */
+    private val mTimeoutRunnable = Runnable {
+        mChoreographer?.removeFrameCallback(mFrameCallback)
+        drain()
+    }
+
+    private const val FRAME_TIMEOUT_MS = 100L
+
+    override fun execute(command: Runnable) {
+        mQueue.offer(command)
+        mPending.incrementAndGet()
+        schedule()
+    }
+
+    /**
+     * 优先执行，并且不受[frameBudgetMs]限制，只用于少量和界面响应直接相关的任务
+     */
+    @JvmStatic
+    fun executePriority(command: Runnable) {
+        mPriorityQueue.offer(command)
+        mPending.incrementAndGet()
+        schedule()
+    }
+
+    @JvmStatic
+    fun post(block: () -> Unit) {
+        execute(Runnable(block))
+    }
+
+    /**
+     * 当前还没有执行的block数量
+     */
+    @JvmStatic
+    val pendingCount: Int
+        get() = mPending.get()
+
+    /**
+     * 每帧开始执行时的队列长度
+     */
+    @JvmStatic
+    fun queueDepthSnapshot(): HistogramSnapshot = mDepth.snapshot()
+
+    /**
+     * 每帧执行所有block的耗时，单位微秒
+     */
+    @JvmStatic
+    fun drainTimeSnapshot(): HistogramSnapshot = mDrainTime.snapshot()
+
+    @JvmStatic
+    fun resetMetrics() {
+        mDepth.reset()
+        mDrainTime.reset()
+    }
+
+    private fun schedule() {
+        if (!mScheduled.compareAndSet(false, true)) {
+            return
+        }
+        mMainHandler.postDelayed(mTimeoutRunnable, FRAME_TIMEOUT_MS)
+        val choreographer = mChoreographer
+        when {
+            choreographer != null -> choreographer.postFrameCallback(mFrameCallback)
+            isMainThread() -> postFrameCallback()
+            else -> mMainHandler.post(mScheduleRunnable)
+        }
+    }
+
+    private fun postFrameCallback() {
+        val choreographer = mChoreographer ?: Choreographer.getInstance().also { mChoreographer = it }
+        choreographer.postFrameCallback(mFrameCallback)
+    }
+
+    private fun drain() {
+        // 先清标记，执行过程中新提交的block会安排到下一帧
+        mScheduled.set(false)
+        mDepth.record(mPending.get().toLong())
+        val start = System.nanoTime()
+        val deadline = start + TimeUnit.MILLISECONDS.toNanos(frameBudgetMs)
+        try {
+            while (true) {
+                val command = mPriorityQueue.poll() ?: break
+                mPending.decrementAndGet()
+                command.run()
+            }
+            while (System.nanoTime() < deadline) {
+                val command = mQueue.poll() ?: break
+                mPending.decrementAndGet()
+                command.run()
+            }
+        } finally {
+            mDrainTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start))
+            // 超时或者block抛异常时，剩下的留到下一帧
+            if (mPending.get() > 0) {
+                schedule()
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.hua.kotlin_tools
+
+import kotlinx.coroutines.CoroutineDispatcher
+import java.util.ArrayDeque
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * 可以暂停的调度器，暂停期间所有调度都先存起来，恢复时按顺序交给[delegate]执行。
+ *
+ * 已经在执行的代码不会被打断，协程会在下一次挂起恢复（或者切换线程）的时候停住，
+ * 所以耗时的循环中需要有挂起点，比如delay或者yield。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-20 15:10
+ */
+
+class PausableDispatcher(private val delegate: CoroutineDispatcher) : CoroutineDispatcher() {
+
+    private val mLock = Any()
+
+    private val mQueue = ArrayDeque<Pair<CoroutineContext, Runnable>>()
+
+    @Volatile
+    var isPaused = false
+        private set
+
+    override fun isDispatchNeeded(context: CoroutineContext): Boolean {
+        return isPaused || delegate.isDispatchNeeded(context)
+    }
+
+    override fun dispatch(context: CoroutineContext, block: Runnable) {
+        synchronized(mLock) {
+            if (isPaused) {
+                mQueue.add(Pair(context, block))
+                return
+            }
+        }
+        delegate.dispatch(context, block)
+    }
+
+    fun pause() {
+        synchronized(mLock) {
+            isPaused = true
+        }
+    }
+
+    fun resume() {
+        val blocks = synchronized(mLock) {
+            isPaused = false
+            ArrayList(mQueue).also { mQueue.clear() }
+        }
+        for ((context, block) in blocks) {
+            delegate.dispatch(context, block)
+        }
+    }
+
+    override fun toString(): String {
+        return "PausableDispatcher($delegate)"
+    }
+}
@@ -1,63 +1,504 @@
 package com.hua.kotlin_tools
 
+import android.app.Activity
+import android.app.Application
 import android.content.Context
+import android.os.Bundle
 import android.preference.PreferenceManager
-import java.security.AccessController.getContext
-import kotlin.properties.ReadWriteProperty
+import com.hua.kotlin_tools.pref.MmapPrefStore
+import com.hua.kotlin_tools.pref.PrefEngine
+import com.hua.kotlin_tools.pref.PrefStamp
+import com.hua.kotlin_tools.pref.PrefStore
+import com.hua.kotlin_tools.pref.SharedPrefStore
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+import java.util.concurrent.TimeUnit
 import kotlin.reflect.KProperty
 
 /**
+ * 默认使用SharedPreferences存储，写操作先进入内存缓存，每隔[flushIntervalMs]在子线程合并成一次commit，
+ * 见[SharedPrefStore]。也可以通过[init]换成[MmapPrefStore]，读写都不需要解析或重写整个文件。
+ *
+ * 需要一次写入多个key时用[edit]，需要马上落盘时调用[flush]。
+ * Activity onPause和最后一个Activity onStop（应用退到后台）时马上在子线程落盘，不会卡主线程。
+ * 使用SharedPreferences时仍然可能丢失的是：前台运行时崩溃前[flushIntervalMs]内的写入，
+ * 退到后台后子线程还没写完就被杀的数据，以及退到后台之后（例如Service中）写入、还没等到下一次落盘的数据。
+ * 使用[MmapPrefStore]时写入即进入page cache，只有系统掉电才会丢失。
+ * 建议在Application.onCreate中调用[preload]，避免第一次读操作在主线程等待磁盘。
+ * 频繁读取的key可以用[prefInt]等属性委托，值会缓存在字段中。
+ *
  * @author zhangsh
  * @version V1.0
  * @date 2019/6/16 4:31 PM
  */
 object PrefUtil {
 
+    private const val TAG = "PrefUtil"
+
+    /**
+     * SharedPreferences两次落盘之间的最小间隔，需要在第一次读写之前设置
+     */
+    @JvmStatic
+    @Volatile
+    var flushIntervalMs = 1000L
+
+    private val mLock = Any()
+
+    @Volatile
+    private var mStore: PrefStore? = null
+
+    private var mEngine = PrefEngine.SHARED_PREFERENCES
+
+    @Volatile
+    private var mPreload: FutureTask<PrefStore>? = null
+
+    @Volatile
+    private var mAppContext: Context? = null
+
+    private var mLifecycleRegistered = false
+
+    private val mActivityCallbacks = object : Application.ActivityLifecycleCallbacks {
+        private var mStartedCount = 0
+
+        override fun onActivityStarted(activity: Activity) {
+            mStartedCount++
+        }
+
+        override fun onActivityPaused(activity: Activity) {
+            mStore?.flush(false)
+        }
+
+        override fun onActivityStopped(activity: Activity) {
+            mStartedCount = Math.max(0, mStartedCount - 1)
+            if (mStartedCount == 0) {
+                // 进程在后台随时可能被杀，尽快落盘，但不在主线程等待磁盘。
+                // mmap的数据写入后就在page cache中，进程被杀也不会丢，不需要msync
+                mStore?.flush(false)
+            }
+        }
+
+        override fun onActivityCreated(activity: Activity, savedInstanceState: Bundle?) {
+        }
+
+        override fun onActivityResumed(activity: Activity) {
+        }
+
+        override fun onActivitySaveInstanceState(activity: Activity, outState: Bundle) {
+        }
+
+        override fun onActivityDestroyed(activity: Activity) {
+        }
+    }
+
+    /**
+     * 主线程因为预加载还没完成而等待的时间，单位微秒
+     */
+    private val mMainThreadWait = Histogram()
+
+    /**
+     * 选择存储引擎，必须在第一次读写之前调用（一般是Application.onCreate），不调用时使用SharedPreferences。
+     * 第一次使用[PrefEngine.MMAP]时会把默认SharedPreferences中的数据迁移过去。
+     * 有多个进程读写时使用[PrefEngine.MMAP_MULTI_PROCESS]，并且所有进程都要用它。
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun init(context: Context, engine: PrefEngine = PrefEngine.SHARED_PREFERENCES) {
+        synchronized(mLock) {
+            if (mStore != null || mPreload != null) {
+                if (engine != mEngine) {
+                    throw IllegalStateException("PrefUtil.init() must be called before first access")
+                }
+                return
+            }
+            mEngine = engine
+            mAppContext = context.applicationContext
+            registerLifecycle(context)
+            mStore = createStore(context)
+        }
+    }
+
+    /**
+     * 与[init]相同，但是在子线程中创建并加载存储，读写操作只在加载还没完成时才会等待。
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun preload(context: Context, engine: PrefEngine = PrefEngine.SHARED_PREFERENCES) {
+        val appContext = context.applicationContext
+        synchronized(mLock) {
+            if (mStore != null || mPreload != null) {
+                return
+            }
+            mEngine = engine
+            mAppContext = appContext
+            registerLifecycle(appContext)
+            val task = FutureTask<PrefStore> {
+                createStore(appContext).also {
+                    it.warmUp()
+                    synchronized(mLock) {
+                        mStore = it
+                    }
+                }
+            }
+            mPreload = task
+            AppExecutors.disk.execute(task)
+        }
+    }
+
+    /**
+     * 主线程等待预加载的耗时统计，单位微秒
+     */
+    @JvmStatic
+    fun mainThreadWaitSnapshot(): HistogramSnapshot {
+        return mMainThreadWait.snapshot()
+    }
+
     @JvmStatic
     fun put(key: String, value: String, context: Context) {
-        val sp = PreferenceManager.getDefaultSharedPreferences(context)
-        sp.edit().putString(key, value).apply()
+        store(context).put(key, value)
     }
 
     @JvmStatic
     fun put(key: String, value: Boolean, context: Context) {
-        val sp = PreferenceManager.getDefaultSharedPreferences(context)
-        sp.edit().putBoolean(key, value).apply()
+        store(context).put(key, value)
     }
 
     @JvmStatic
     fun put(key: String, value: Long, context: Context) {
-        val sp = PreferenceManager.getDefaultSharedPreferences(context)
-        sp.edit().putLong(key, value).apply()
+        store(context).put(key, value)
     }
 
     @JvmStatic
     fun put(key: String, value: Int, context: Context) {
-        val sp = PreferenceManager.getDefaultSharedPreferences(context)
-        sp.edit().putInt(key, value).apply()
+        store(context).put(key, value)
+    }
+
+    @JvmStatic
+    fun remove(key: String, context: Context) {
+        store(context).put(key, PrefStore.REMOVED)
+    }
+
+    /**
+     * 在一个事务里写入多个key，它们会在同一次commit里落盘
+     *
+     * ```
+     * PrefUtil.edit(context) {
+     *     put("name", name)
+     *     put("age", age)
+     * }
+     * ```
+     */
+    @JvmStatic
+    fun edit(context: Context, block: PrefEditor.() -> Unit) {
+        val editor = PrefEditor()
+        editor.block()
+        store(context).putAll(editor.values)
     }
 
     @JvmStatic
     fun getString(key: String, defaultValue: String? = null, context: Context): String {
-        val sp = PreferenceManager.getDefaultSharedPreferences(context)
-        return sp.getString(key, defaultValue) ?: ""
+        return store(context).getString(key, defaultValue) ?: ""
     }
 
     @JvmStatic
     fun getLong(key: String, context: Context): Long {
-        val sp = PreferenceManager.getDefaultSharedPreferences(context)
-        return sp.getLong(key, -1L)
+        return store(context).getLong(key, -1L)
     }
 
     @JvmStatic
     fun getInt(key: String, defaultValue: Int = -1, context: Context): Int {
-        val sp = PreferenceManager.getDefaultSharedPreferences(context)
-        return sp.getInt(key, defaultValue)
+        return store(context).getInt(key, defaultValue)
     }
 
     @JvmStatic
     fun getBoolean(key: String, defaultValue: Boolean = false, context: Context): Boolean {
-        val sp = PreferenceManager.getDefaultSharedPreferences(context)
-        return sp.getBoolean(key, defaultValue)
+        return store(context).getBoolean(key, defaultValue)
+    }
+
+    /**
+     * 只有值真正发生变化时才回调，在写入的线程回调
+     */
+    @JvmStatic
+    fun addOnChangeListener(context: Context, listener: (key: String) -> Unit) {
+        store(context).addChangeListener(listener)
+    }
+
+    @JvmStatic
+    fun removeOnChangeListener(context: Context, listener: (key: String) -> Unit) {
+        store(context).removeChangeListener(listener)
+    }
+
+    /**
+     * 把缓存中的数据写入文件
+     *
+     * @param blocking true表示在当前线程写完再返回，否则在子线程写
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun flush(blocking: Boolean = false) {
+        mStore?.flush(blocking)
+    }
+
+    private fun store(context: Context): PrefStore {
+        mStore?.let { return it }
+        mPreload?.let { task ->
+            awaitPreload(task)?.let { return it }
+        }
+        return synchronized(mLock) {
+            mStore ?: createStore(context).also {
+                mAppContext = context.applicationContext
+                registerLifecycle(context)
+                mStore = it
+            }
+        }
+    }
+
+    /**
+     * 给属性委托用，它们拿不到context
+     */
+    internal fun requireStore(): PrefStore {
+        mStore?.let { return it }
+        val context = mAppContext
+                ?: throw IllegalStateException("call PrefUtil.init() or PrefUtil.preload() first")
+        return store(context)
+    }
+
+    /**
+     * 预加载失败时返回null，由调用方在当前线程重新创建
+     */
+    private fun awaitPreload(task: FutureTask<PrefStore>): PrefStore? {
+        val waiting = !task.isDone && isMainThread()
+        val start = System.nanoTime()
+        val store = try {
+            task.get()
+        } catch (e: ExecutionException) {
+            LogUtil.e(TAG, "preload failed", e.cause)
+            synchronized(mLock) {
+                if (mPreload === task) {
+                    mPreload = null
+                }
+            }
+            null
+        }
+        if (waiting) {
+            val waitMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start)
+            mMainThreadWait.record(waitMicros)
+            LogUtil.w(TAG, "main thread waited ${waitMicros}us for preload")
+        }
+        return store
+    }
+
+    /**
+     * 持有[mLock]调用
+     */
+    private fun registerLifecycle(context: Context) {
+        if (mLifecycleRegistered) {
+            return
+        }
+        val app = context.applicationContext as? Application ?: return
+        app.registerActivityLifecycleCallbacks(mActivityCallbacks)
+        mLifecycleRegistered = true
+    }
+
+    private fun createStore(context: Context): PrefStore {
+        return when (mEngine) {
+            PrefEngine.SHARED_PREFERENCES -> SharedPrefStore(
+                    PreferenceManager.getDefaultSharedPreferences(context.applicationContext),
+                    flushIntervalMs)
+            PrefEngine.MMAP -> MmapPrefStore.openDefault(context.applicationContext)
+            PrefEngine.MMAP_MULTI_PROCESS -> MmapPrefStore.openDefault(context.applicationContext, true)
+        }
+    }
+}
+
+class PrefEditor internal constructor() {
+
+    internal val values = HashMap<String, Any>()
+
+    fun put(key: String, value: String) {
+        values[key] = value
+    }
+
+    fun put(key: String, value: Boolean) {
+        values[key] = value
+    }
+
+    fun put(key: String, value: Long) {
+        values[key] = value
+    }
+
+    fun put(key: String, value: Int) {
+        values[key] = value
+    }
+
+    fun remove(key: String) {
+        values[key] = PrefStore.REMOVED
+    }
+}
+
+/**
+ * 属性委托，只有第一次读或者数据有变化之后才会访问存储，其余时候只是读一个字段。
+ * 使用前必须先调用[PrefUtil.init]或者[PrefUtil.preload]。
+ *
+ * ```
+ * var launchCount by prefInt("launch_count")
+ * ```
+ */
+fun prefInt(key: String, defaultValue: Int = 0) = IntPref(key, defaultValue)
+
+fun prefLong(key: String, defaultValue: Long = 0L) = LongPref(key, defaultValue)
+
+fun prefBoolean(key: String, defaultValue: Boolean = false) = BooleanPref(key, defaultValue)
+
+fun prefFloat(key: String, defaultValue: Float = 0f) = FloatPref(key, defaultValue)
+
+fun prefString(key: String, defaultValue: String = "") = StringPref(key, defaultValue)
+
+/**
+ * 属性委托的公共部分：按key的版本戳判断缓存是否过期，过期时调用[reload]重新读取。
+ *
+ * 子类不用泛型，也不实现ReadWriteProperty，各自声明返回基本类型的getValue/setValue，
+ * 并且prefXxx方法返回具体类型，这样属性读取不会装箱。
+ * 存储引擎按Any保存值，写入真正发生变化时仍然会装箱一次；写入的值和最新的缓存值相同时直接返回，不访问存储。
+ * [mVersion]是读取缓存值时的版本号，先读版本号再读值、先写值再写[mVersion]，
+ * 读到新版本号一定能读到新值。
+ */
+abstract class PrefDelegate internal constructor(protected val key: String) {
+
+    private var mStamp: PrefStamp? = null
+
+    @Volatile
+    private var mVersion = -1
+
+    /**
+     * 缓存过期时从存储中读取，getValue中先调用
+     */
+    protected fun refresh() {
+        val store = PrefUtil.requireStore()
+        val version = store.versionOf(stamp(store))
+        if (version != mVersion) {
+            reload(store)
+            mVersion = version
+        }
+    }
+
+    /**
+     * 缓存的值是否是最新的，setValue中用来跳过没有变化的写入
+     */
+    protected fun isCurrent(): Boolean {
+        val store = PrefUtil.requireStore()
+        return store.versionOf(stamp(store)) == mVersion
+    }
+
+    private fun stamp(store: PrefStore): PrefStamp {
+        return mStamp ?: store.stampOf(key).also { mStamp = it }
+    }
+
+    protected fun write(value: Any) {
+        PrefUtil.requireStore().put(key, value)
+    }
+
+    /**
+     * 从[store]读取值保存到字段中
+     */
+    protected abstract fun reload(store: PrefStore)
+}
+
+class IntPref internal constructor(key: String, private val defaultValue: Int) : PrefDelegate(key) {
+    private var mValue = defaultValue
+
+    operator fun getValue(thisRef: Any?, property: KProperty<*>): Int {
+        refresh()
+        return mValue
+    }
+
+    operator fun setValue(thisRef: Any?, property: KProperty<*>, value: Int) {
+        if (isCurrent() && mValue == value) {
+            return
+        }
+        write(value)
+    }
+
+    override fun reload(store: PrefStore) {
+        mValue = store.getInt(key, defaultValue)
+    }
+}
+
+class LongPref internal constructor(key: String, private val defaultValue: Long) : PrefDelegate(key) {
+    private var mValue = defaultValue
+
+    operator fun getValue(thisRef: Any?, property: KProperty<*>): Long {
+        refresh()
+        return mValue
+    }
+
+    operator fun setValue(thisRef: Any?, property: KProperty<*>, value: Long) {
+        if (isCurrent() && mValue == value) {
+            return
+        }
+        write(value)
+    }
+
+    override fun reload(store: PrefStore) {
+        mValue = store.getLong(key, defaultValue)
+    }
+}
+
+class BooleanPref internal constructor(key: String, private val defaultValue: Boolean) : PrefDelegate(key) {
+    private var mValue = defaultValue
+
+    operator fun getValue(thisRef: Any?, property: KProperty<*>): Boolean {
+        refresh()
+        return mValue
+    }
+
+    operator fun setValue(thisRef: Any?, property: KProperty<*>, value: Boolean) {
+        if (isCurrent() && mValue == value) {
+            return
+        }
+        write(value)
+    }
+
+    override fun reload(store: PrefStore) {
+        mValue = store.getBoolean(key, defaultValue)
+    }
+}
+
+class FloatPref internal constructor(key: String, private val defaultValue: Float) : PrefDelegate(key) {
+    private var mValue = defaultValue
+
+    operator fun getValue(thisRef: Any?, property: KProperty<*>): Float {
+        refresh()
+        return mValue
+    }
+
+    operator fun setValue(thisRef: Any?, property: KProperty<*>, value: Float) {
+        if (isCurrent() && mValue == value) {
+            return
+        }
+        write(value)
+    }
+
+    override fun reload(store: PrefStore) {
+        mValue = store.getFloat(key, defaultValue)
+    }
+}
+
+class StringPref internal constructor(key: String, private val defaultValue: String) : PrefDelegate(key) {
+    private var mValue = defaultValue
+
+    operator fun getValue(thisRef: Any?, property: KProperty<*>): String {
+        refresh()
+        return mValue
+    }
+
+    operator fun setValue(thisRef: Any?, property: KProperty<*>, value: String) {
+        if (isCurrent() && mValue == value) {
+            return
+        }
+        write(value)
+    }
+
+    override fun reload(store: PrefStore) {
+        mValue = store.getString(key, defaultValue) ?: defaultValue
     }
 }
@@ -0,0 +1,141 @@
+package com.hua.kotlin_tools
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.content.res.Configuration
+import android.graphics.drawable.Drawable
+import android.util.LruCache
+import androidx.annotation.ColorRes
+import androidx.annotation.DrawableRes
+import androidx.annotation.StringRes
+import androidx.core.content.ContextCompat
+
+/**
+ * 进程级的资源缓存。
+ *
+ * 列表数据转换成UI模型时会大量调用getString/getColor/getDrawable，每次都要经过Resources查表，
+ * getDrawable每次还会重新解析一个Drawable。这里按资源id缓存：
+ * 1. 字符串和颜色直接缓存值；
+ * 1. Drawable缓存[Drawable.ConstantState]，每次通过newDrawable返回新实例，bitmap等底层数据共享。
+ *    共享的Drawable在修改alpha、tint等状态之前需要先调用[Drawable.mutate]，否则会影响其他实例；
+ * 1. 配置（语言、夜间模式、屏幕密度、字体大小等）变化时自动清空，内存不足时清空Drawable。
+ *
+ * 缓存基于Application的Resources，不要用来获取依赖Activity主题的资源。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-19 10:20
+ */
+
+object ResCache {
+
+    /**
+     * 每种资源最多缓存的数量，需要在第一次使用前设置
+     */
+    @JvmStatic
+    @Volatile
+    var maxSize = 256
+
+    private val mLock = Any()
+
+    @Volatile
+    private var mContext: Context? = null
+
+    private var mConfig: Configuration? = null
+
+    /**
+     * 每次清空加1，清空之前开始读取的旧资源不再写入缓存
+     */
+    @Volatile
+    private var mGeneration = 0
+
+    private val mStrings by lazy { LruCache<Int, String>(maxSize) }
+
+    private val mColors by lazy { LruCache<Int, Int>(maxSize) }
+
+    private val mDrawables by lazy { LruCache<Int, Drawable.ConstantState>(maxSize) }
+
+    private val mCallbacks = object : ComponentCallbacks2 {
+        override fun onConfigurationChanged(newConfig: Configuration) {
+            synchronized(mLock) {
+                val old = mConfig
+                if (old != null && old.diff(newConfig) == 0) {
+                    return
+                }
+                mConfig = Configuration(newConfig)
+            }
+            clear()
+        }
+
+        override fun onLowMemory() {
+            mDrawables.evictAll()
+        }
+
+        override fun onTrimMemory(level: Int) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                mDrawables.evictAll()
+            }
+        }
+    }
+
+    @JvmStatic
+    fun getString(context: Context, @StringRes resId: Int): String {
+        val app = attach(context)
+        val generation = mGeneration
+        return mStrings.get(resId) ?: app.getString(resId).also {
+            if (generation == mGeneration) {
+                mStrings.put(resId, it)
+            }
+        }
+    }
+
+    @JvmStatic
+    fun getColor(context: Context, @ColorRes resId: Int): Int {
+        val app = attach(context)
+        val generation = mGeneration
+        return mColors.get(resId) ?: ContextCompat.getColor(app, resId).also {
+            if (generation == mGeneration) {
+                mColors.put(resId, it)
+            }
+        }
+    }
+
+    /**
+     * 返回的是新实例，但和其他实例共享状态，修改前先调用[Drawable.mutate]
+     */
+    @JvmStatic
+    fun getDrawable(context: Context, @DrawableRes resId: Int): Drawable? {
+        val app = attach(context)
+        val generation = mGeneration
+        mDrawables.get(resId)?.let {
+            return it.newDrawable(app.resources)
+        }
+        val drawable = ContextCompat.getDrawable(app, resId) ?: return null
+        val state = drawable.constantState ?: return drawable
+        if (generation == mGeneration) {
+            mDrawables.put(resId, state)
+        }
+        // 第一次也返回newDrawable的实例，避免原实例被修改后影响缓存的state
+        return state.newDrawable(app.resources)
+    }
+
+    @JvmStatic
+    fun clear() {
+        mGeneration++
+        mStrings.evictAll()
+        mColors.evictAll()
+        mDrawables.evictAll()
+    }
+
+    private fun attach(context: Context): Context {
+        mContext?.let { return it }
+        synchronized(mLock) {
+            mContext?.let { return it }
+            val app = context.applicationContext
+            mConfig = Configuration(app.resources.configuration)
+            app.registerComponentCallbacks(mCallbacks)
+            mContext = app
+            return app
+        }
+    }
+}
@@ -1,13 +1,16 @@
 package com.hua.kotlin_tools
 
 import android.os.Looper
+import android.view.Choreographer
 import io.reactivex.Observable
 import io.reactivex.android.schedulers.AndroidSchedulers
+import io.reactivex.disposables.CompositeDisposable
 import io.reactivex.disposables.Disposable
+import io.reactivex.disposables.Disposables
 import io.reactivex.functions.Function
-import io.reactivex.schedulers.Schedulers
 import io.reactivex.subjects.PublishSubject
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
 
 import java.io.Serializable
 import java.lang.RuntimeException
@@ -21,7 +24,7 @@ import kotlin.coroutines.resumeWithException
  */
 
 fun <T> Observable<T>.async(): Observable<T> {
-    return this.subscribeOn(Schedulers.io())
+    return this.subscribeOn(AppExecutors.ioScheduler)
             .observeOn(AndroidSchedulers.mainThread())
 }
 
@@ -33,16 +36,19 @@ val sGlobalMainScope by lazy {
 }
 
 val sGlobalIOScope by lazy {
-    CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    CoroutineScope(SupervisorJob() + AppExecutors.ioDispatcher)
 }
 
 /**
  * 这里的global的含义并非Coroutine中的[GlobalScope]
  * 而是为了区别于[BaseViewModel]中launch，此方法的目的就是使代码的执行环境变成协程。
+ *
+ * @param name 任务名，[TaskMetrics.enabled]时按任务名统计耗时
  */
 fun globalLaunchMain(block: suspend () -> Unit,
-                     error: (suspend (Throwable) -> Unit)? = null) {
-    sGlobalMainScope.launch {
+                     error: (suspend (Throwable) -> Unit)? = null,
+                     name: String? = null) {
+    sGlobalMainScope.launchTraced(name) {
         try {
             block.invoke()
         } catch (e: Throwable) {
@@ -52,11 +58,12 @@ fun globalLaunchMain(block: suspend () -> Unit,
 }
 
 fun globalLaunchIO(block: suspend CoroutineScope.() -> Unit,
-                   error: ((Throwable) -> Unit)? = null) {
+                   error: ((Throwable) -> Unit)? = null,
+                   name: String? = null) {
     val handler = CoroutineExceptionHandler { context, e ->
         error?.invoke(e) ?: LogUtil.e(e)
     }
-    sGlobalIOScope.launch(handler) {
+    sGlobalIOScope.launchTraced(name, handler) {
         block.invoke(this)
     }
 }
@@ -198,3 +205,142 @@ fun <T> Observable<T>.subscribeSuspend(consume: suspend ((T) -> Unit),
         })
     })
 }
+
+private const val DEFAULT_CHANNEL_CAPACITY = 64
+
+/**
+ * [subscribeSuspend]每个数据都会启动一个协程、post一次主线程消息，并且[consume]挂起时顺序无法保证。
+ * 这里所有数据先进入一个channel，由一个常驻的主线程协程按顺序消费。
+ *
+ * 未消费的数据超过[capacity]时，如果上游在子线程发射则阻塞上游等待消费；
+ * 如果在主线程发射（例如observeOn主线程时一条消息里连续发射多个数据）则无法等待，
+ * 数据继续缓存，不会中断上游。
+ *
+ * @param conflate true表示只关心最新的数据，消费不过来时丢弃旧数据，此时[capacity]无效
+ */
+fun <T : Any> Observable<T>.subscribeSuspendOrdered(consume: suspend ((T) -> Unit),
+                                                    error: (suspend (Throwable) -> Unit)? = null,
+                                                    capacity: Int = DEFAULT_CHANNEL_CAPACITY,
+                                                    conflate: Boolean = false): Disposable {
+    val channel = Channel<T>(if (conflate) Channel.CONFLATED else Channel.UNLIMITED)
+    // CONFLATED的channel不会满，也不需要计数
+    val backpressure = if (conflate) null else ChannelBackpressure(capacity)
+    val upstreamError = arrayOfNulls<Throwable>(1)
+    val job = sGlobalMainScope.launch {
+        for (item in channel) {
+            backpressure?.release(1)
+            try {
+                consume(item)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Throwable) {
+                error?.invoke(e)
+            }
+        }
+        upstreamError[0]?.let { error?.invoke(it) }
+    }
+    return subscribeChannel(channel, backpressure, job, upstreamError)
+}
+
+/**
+ * 与[subscribeSuspendOrdered]相同，但是每一帧只唤醒一次主线程，
+ * 把这一帧内到达的数据合并成一个list交给[consume]。
+ */
+fun <T : Any> Observable<T>.subscribeSuspendBatched(consume: suspend ((List<T>) -> Unit),
+                                                    error: (suspend (Throwable) -> Unit)? = null,
+                                                    capacity: Int = DEFAULT_CHANNEL_CAPACITY): Disposable {
+    val channel = Channel<T>(Channel.UNLIMITED)
+    val backpressure = ChannelBackpressure(capacity)
+    val upstreamError = arrayOfNulls<Throwable>(1)
+    val job = sGlobalMainScope.launch {
+        while (true) {
+            val first = channel.receiveOrNull() ?: break
+            awaitFrame()
+            val batch = ArrayList<T>()
+            batch.add(first)
+            while (true) {
+                batch.add(channel.poll() ?: break)
+            }
+            backpressure.release(batch.size)
+            try {
+                consume(batch)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Throwable) {
+                error?.invoke(e)
+            }
+        }
+        upstreamError[0]?.let { error?.invoke(it) }
+    }
+    return subscribeChannel(channel, backpressure, job, upstreamError)
+}
+
+/**
+ * 统计channel中还没被消费的数据个数，子线程发射时超过[capacity]就阻塞等待。
+ * channel本身不限容量，主线程发射时不等待，只会暂时超出[capacity]。
+ */
+private class ChannelBackpressure(private val capacity: Int) {
+
+    private val mLock = Object()
+
+    private var mPending = 0
+
+    private var mCancelled = false
+
+    fun acquire(wait: Boolean) {
+        synchronized(mLock) {
+            while (wait && mPending >= capacity && !mCancelled) {
+                mLock.wait()
+            }
+            mPending++
+        }
+    }
+
+    fun release(count: Int) {
+        synchronized(mLock) {
+            mPending -= count
+            mLock.notifyAll()
+        }
+    }
+
+    fun cancel() {
+        synchronized(mLock) {
+            mCancelled = true
+            mLock.notifyAll()
+        }
+    }
+}
+
+/**
+ * 上游的异常不通过channel传递，否则消费端取数据时会直接抛出，还没消费的数据就丢了
+ */
+private fun <T : Any> Observable<T>.subscribeChannel(channel: Channel<T>,
+                                                     backpressure: ChannelBackpressure?,
+                                                     consumer: Job,
+                                                     upstreamError: Array<Throwable?>): Disposable {
+    val upstream = this.subscribe({
+        backpressure?.acquire(!isMainThread())
+        channel.offer(it)
+    }, {
+        upstreamError[0] = it
+        channel.close()
+    }, {
+        channel.close()
+    })
+    return CompositeDisposable(upstream, Disposables.fromAction {
+        consumer.cancel()
+        channel.cancel()
+        backpressure?.cancel()
+    })
+}
+
+/**
+ * 挂起直到下一帧，必须在主线程调用
+ */
+private suspend fun awaitFrame(): Long {
+    return suspendCancellableCoroutine { continuation ->
+        Choreographer.getInstance().postFrameCallback {
+            continuation.resume(it)
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.hua.kotlin_tools
+
+import android.os.SystemClock
+import io.reactivex.Observable
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+
+/**
+ * 按key合并并发请求。
+ *
+ * [ResultSubjectHelper]同时只能有一个subject，再次createSubject会直接结束上一个调用方。
+ * 这里同一个key并发请求时共享同一个[Observable]/[Deferred]，只会真正请求一次，
+ * 结果按[ttlMillis]缓存，缓存数量超过[maxSize]时淘汰最久未使用的。
+ *
+ * [staleMillis]大于0时，过期后的[staleMillis]时间内仍然直接返回旧值，同时在后台刷新（stale-while-revalidate）。
+ *
+ * 注意Observable和Deferred两种方式共享缓存，但正在进行中的请求是分开的。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-09 11:40
+ */
+
+class SingleFlight<K, V : Any> @JvmOverloads constructor(
+        private val ttlMillis: Long = DEFAULT_TTL,
+        private val maxSize: Int = DEFAULT_MAX_SIZE,
+        private val scope: CoroutineScope = sGlobalIOScope,
+        private val staleMillis: Long = 0
+) {
+
+    private class Entry<V>(val value: V, val time: Long)
+
+    private val mLock = Any()
+
+    private val mCache = object : LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, Entry<V>>?): Boolean {
+            return size > maxSize
+        }
+    }
+
+    private val mInFlightObservables = HashMap<K, Observable<V>>()
+
+    private val mInFlightDeferreds = HashMap<K, Deferred<V>>()
+
+    /**
+     * 有未过期的缓存时直接发射缓存，否则订阅[loader]返回的Observable，只取第一个数据。
+     * 缓存已过期但还在[staleMillis]内时发射旧值，同时在后台刷新。
+     */
+    fun observe(key: K, loader: () -> Observable<V>): Observable<V> {
+        return Observable.defer<V> {
+            var refresh: Observable<V>? = null
+            val result = synchronized(mLock) {
+                val entry = getUsable(key)
+                if (entry != null) {
+                    if (isStale(entry) && !mInFlightObservables.containsKey(key)) {
+                        refresh = shareObservable(key, loader()).also { mInFlightObservables[key] = it }
+                    }
+                    Observable.just(entry.value)
+                } else {
+                    mInFlightObservables[key]
+                            ?: shareObservable(key, loader()).also { mInFlightObservables[key] = it }
+                }
+            }
+            // 在锁外订阅，loader同步执行或者同步出错时，完成回调里还要拿mLock，也不能让其他key等着它
+            refresh?.subscribe({}, { LogUtil.e(TAG, "refresh $key failed", it) })
+            result
+        }
+    }
+
+    /**
+     * 有未过期的缓存时返回已完成的Deferred，否则在[scope]中执行[loader]。
+     * 缓存已过期但还在[staleMillis]内时返回旧值，同时在后台刷新。
+     * 调用方取消等待不会取消共享的请求。
+     */
+    fun async(key: K, loader: suspend () -> V): Deferred<V> {
+        synchronized(mLock) {
+            val entry = getUsable(key)
+            if (entry != null) {
+                if (isStale(entry) && !mInFlightDeferreds.containsKey(key)) {
+                    startAsync(key, loader)
+                }
+                return CompletableDeferred(entry.value)
+            }
+            return mInFlightDeferreds[key] ?: startAsync(key, loader)
+        }
+    }
+
+    /**
+     * 必须持有[mLock]
+     */
+    private fun startAsync(key: K, loader: suspend () -> V): Deferred<V> {
+        val deferred = scope.async(start = CoroutineStart.LAZY) { loader() }
+        mInFlightDeferreds[key] = deferred
+        deferred.invokeOnCompletion { cause ->
+            synchronized(mLock) {
+                if (mInFlightDeferreds[key] === deferred) {
+                    mInFlightDeferreds.remove(key)
+                    if (cause == null) {
+                        put(key, deferred.getCompleted())
+                    }
+                }
+            }
+        }
+        deferred.start()
+        return deferred
+    }
+
+    suspend fun get(key: K, loader: suspend () -> V): V {
+        return async(key, loader).await()
+    }
+
+    /**
+     * 未过期的缓存，没有时返回null
+     */
+    fun peek(key: K): V? {
+        synchronized(mLock) {
+            return getUsable(key)?.takeIf { !isStale(it) }?.value
+        }
+    }
+
+    /**
+     * 清除缓存。正在进行中的请求不会被取消，但它的结果不会再写入缓存，之后的请求会重新发起。
+     */
+    fun invalidate(key: K) {
+        synchronized(mLock) {
+            mCache.remove(key)
+            mInFlightObservables.remove(key)
+            mInFlightDeferreds.remove(key)
+        }
+    }
+
+    /**
+     * 清除所有满足[predicate]的key，见[invalidate]
+     */
+    fun invalidateIf(predicate: (K) -> Boolean) {
+        synchronized(mLock) {
+            mCache.keys.removeAll(predicate)
+            mInFlightObservables.keys.removeAll(predicate)
+            mInFlightDeferreds.keys.removeAll(predicate)
+        }
+    }
+
+    fun invalidateAll() {
+        synchronized(mLock) {
+            mCache.clear()
+            mInFlightObservables.clear()
+            mInFlightDeferreds.clear()
+        }
+    }
+
+    private fun shareObservable(key: K, source: Observable<V>): Observable<V> {
+        var shared: Observable<V>? = null
+        val result = source.take(1)
+                .doOnNext {
+                    synchronized(mLock) {
+                        if (mInFlightObservables[key] === shared) {
+                            put(key, it)
+                        }
+                    }
+                }
+                .doFinally {
+                    synchronized(mLock) {
+                        if (mInFlightObservables[key] === shared) {
+                            mInFlightObservables.remove(key)
+                        }
+                    }
+                }
+                .replay(1)
+                .refCount()
+        shared = result
+        return result
+    }
+
+    /**
+     * 返回未过期或者还可以当作旧值返回的缓存
+     */
+    private fun getUsable(key: K): Entry<V>? {
+        val entry = mCache[key] ?: return null
+        if (SystemClock.elapsedRealtime() - entry.time > ttlMillis + staleMillis) {
+            mCache.remove(key)
+            return null
+        }
+        return entry
+    }
+
+    private fun isStale(entry: Entry<V>): Boolean {
+        return SystemClock.elapsedRealtime() - entry.time > ttlMillis
+    }
+
+    private fun put(key: K, value: V) {
+        mCache[key] = Entry(value, SystemClock.elapsedRealtime())
+    }
+
+    companion object {
+        private const val TAG = "SingleFlight"
+
+        const val DEFAULT_TTL = 60 * 1000L
+        const val DEFAULT_MAX_SIZE = 64
+    }
+}
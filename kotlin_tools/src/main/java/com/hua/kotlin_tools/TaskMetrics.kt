@@ -0,0 +1,230 @@
+package com.hua.kotlin_tools
+
+import android.os.Looper
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.ThreadContextElement
+import kotlinx.coroutines.launch
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.coroutines.CoroutineContext
+import kotlin.coroutines.EmptyCoroutineContext
+
+/**
+ * 协程任务耗时统计，用来区分任务慢是因为在调度队列里排队，还是本身执行慢。
+ *
+ * 默认关闭，打开后对带名字的任务（[globalLaunchMain]、[globalLaunchIO]、
+ * [BaseViewModel.launch]、[BaseViewModel.launchIO]的name参数）按名字记录：
+ * 1. 入队到开始执行的等待时间；
+ * 1. 实际执行时间（每次恢复执行的耗时之和，不包括挂起的时间和子协程的执行时间）；
+ * 1. 挂起次数。
+ *
+ * 时间单位都是微秒。在主线程上单次执行超过[frameBudgetMs]的任务会被记录并打印警告。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-04 15:02
+ */
+
+object TaskMetrics {
+
+    private const val TAG = "TaskMetrics"
+
+    @JvmStatic
+    @Volatile
+    var enabled = false
+
+    /**
+     * 主线程单次执行超过这个时间就认为掉帧了
+     */
+    @JvmStatic
+    @Volatile
+    var frameBudgetMs = 16L
+
+    /**
+     * 主线程任务掉帧回调，参数是任务名和本次执行耗时（毫秒），在主线程回调
+     */
+    @Volatile
+    var onMainBlocked: ((name: String, costMs: Long) -> Unit)? = null
+
+    private val mStats = ConcurrentHashMap<String, TaskStats>()
+
+    @JvmStatic
+    fun snapshot(name: String): TaskSnapshot? {
+        return mStats[name]?.snapshot()
+    }
+
+    @JvmStatic
+    fun snapshots(): List<TaskSnapshot> {
+        return mStats.values.map { it.snapshot() }
+    }
+
+    @JvmStatic
+    fun reset() {
+        mStats.clear()
+    }
+
+    /**
+     * 把所有任务的统计结果打印出来
+     */
+    @JvmStatic
+    fun dump() {
+        snapshots().sortedByDescending { it.run.sum }.forEach {
+            LogUtil.d(TAG, it.toString())
+        }
+    }
+
+    internal fun newTracer(name: String): TaskTracer {
+        val stats = mStats[name] ?: TaskStats(name).let { mStats.putIfAbsent(name, it) ?: it }
+        return TaskTracer(stats)
+    }
+
+    internal fun notifyMainBlocked(stats: TaskStats, costNanos: Long) {
+        stats.mainBlocked.incrementAndGet()
+        val costMs = TimeUnit.NANOSECONDS.toMillis(costNanos)
+        LogUtil.w(TAG, "task ${stats.name} blocked main thread for ${costMs}ms")
+        onMainBlocked?.invoke(stats.name, costMs)
+    }
+}
+
+internal class TaskStats(val name: String) {
+    val count = AtomicLong()
+    val queue = Histogram()
+    val run = Histogram()
+    val suspensions = Histogram()
+    val mainBlocked = AtomicLong()
+
+    fun snapshot(): TaskSnapshot {
+        return TaskSnapshot(name, count.get(), queue.snapshot(), run.snapshot(),
+                suspensions.snapshot(), mainBlocked.get())
+    }
+}
+
+class TaskSnapshot(
+        val name: String,
+        val count: Long,
+        val queue: HistogramSnapshot,
+        val run: HistogramSnapshot,
+        val suspensions: HistogramSnapshot,
+        val mainBlockedCount: Long
+) {
+    override fun toString(): String {
+        return "$name: count=$count, mainBlocked=$mainBlockedCount\n" +
+                "  queue(us): $queue\n" +
+                "  run(us): $run\n" +
+                "  suspensions: $suspensions"
+    }
+}
+
+/**
+ * 每个任务一个实例，作为[ThreadContextElement]放在任务的context中。
+ *
+ * 协程每次在线程上恢复执行都会调用[updateThreadContext]，执行完（挂起或结束）调用
+ * [restoreThreadContext]，不论是经过dispatcher分发还是isDispatchNeeded为false时直接在当前线程恢复
+ * （例如Dispatchers.Main.immediate），所以第一次是启动，之后每次都对应一次挂起。
+ *
+ * 子协程会继承这个element，只统计context中[Job]是任务本身的那次执行：
+ * 子协程单独执行的时间不计入；子协程在任务执行过程中直接在当前线程执行（UNDISPATCHED等）时，
+ * 暂停计时，执行完再继续。
+ */
+internal class TaskTracer(private val stats: TaskStats) : ThreadContextElement<Int> {
+
+    companion object Key : CoroutineContext.Key<TaskTracer> {
+        private const val STATE_NONE = 0
+        private const val STATE_RUNNING = 1
+        private const val STATE_PAUSED = 2
+    }
+
+    override val key: CoroutineContext.Key<*>
+        get() = Key
+
+    /**
+     * 任务本身的Job，在任务启动前设置
+     */
+    @Volatile
+    var job: Job? = null
+
+    @Volatile
+    private var mEnqueueTime = 0L
+
+    private var mResumeCount = 0
+    private var mRunNanos = 0L
+    private var mSliceStart = 0L
+
+    /**
+     * 任务正在执行的线程，没有执行时为null
+     */
+    @Volatile
+    private var mSliceThread: Thread? = null
+
+    fun onStart() {
+        mEnqueueTime = System.nanoTime()
+    }
+
+    override fun updateThreadContext(context: CoroutineContext): Int {
+        val thread = Thread.currentThread()
+        if (context[Job] !== job) {
+            // 子协程，在任务执行过程中直接执行时暂停计时
+            if (mSliceThread === thread && mSliceStart != 0L) {
+                mRunNanos += System.nanoTime() - mSliceStart
+                mSliceStart = 0L
+                return STATE_PAUSED
+            }
+            return STATE_NONE
+        }
+        if (mSliceThread === thread) {
+            // 同一次执行中重入，例如相同dispatcher的withContext
+            return STATE_NONE
+        }
+        val now = System.nanoTime()
+        if (mResumeCount++ == 0) {
+            stats.queue.record(TimeUnit.NANOSECONDS.toMicros(now - mEnqueueTime))
+        }
+        mSliceThread = thread
+        mSliceStart = now
+        return STATE_RUNNING
+    }
+
+    override fun restoreThreadContext(context: CoroutineContext, oldState: Int) {
+        when (oldState) {
+            STATE_PAUSED -> mSliceStart = System.nanoTime()
+            STATE_RUNNING -> {
+                val sliceCost = if (mSliceStart != 0L) System.nanoTime() - mSliceStart else 0L
+                mRunNanos += sliceCost
+                mSliceStart = 0L
+                mSliceThread = null
+                if (sliceCost > TimeUnit.MILLISECONDS.toNanos(TaskMetrics.frameBudgetMs)
+                        && Looper.myLooper() == Looper.getMainLooper()) {
+                    TaskMetrics.notifyMainBlocked(stats, sliceCost)
+                }
+            }
+        }
+    }
+
+    fun onCompleted() {
+        stats.count.incrementAndGet()
+        stats.run.record(TimeUnit.NANOSECONDS.toMicros(mRunNanos))
+        stats.suspensions.record(Math.max(0, mResumeCount - 1).toLong())
+    }
+}
+
+/**
+ * 与[launch]相同，[TaskMetrics.enabled]并且[name]不为空时记录任务耗时。
+ */
+fun CoroutineScope.launchTraced(name: String?,
+                                context: CoroutineContext = EmptyCoroutineContext,
+                                block: suspend CoroutineScope.() -> Unit): Job {
+    if (name == null || !TaskMetrics.enabled) {
+        return launch(context, block = block)
+    }
+    val tracer = TaskMetrics.newTracer(name)
+    // 先LAZY创建，设置好job再启动，第一次执行才能识别出是任务本身
+    val job = launch(context + tracer, CoroutineStart.LAZY, block)
+    tracer.job = job
+    job.invokeOnCompletion { tracer.onCompleted() }
+    tracer.onStart()
+    job.start()
+    return job
+}
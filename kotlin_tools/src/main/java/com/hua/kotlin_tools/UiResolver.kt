@@ -0,0 +1,170 @@
+package com.hua.kotlin_tools
+
+import android.content.Context
+import android.content.res.Configuration
+import android.content.res.Resources
+import android.graphics.Color
+import androidx.annotation.ColorInt
+import androidx.annotation.FloatRange
+import java.lang.ref.WeakReference
+import java.util.WeakHashMap
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 自定义View和扩展方法共用的尺寸、颜色解析。
+ *
+ * 每次读context.resources.displayMetrics要经过好几层调用，onDraw中频繁调用时开销不小：
+ * 1. 按传入context的Resources缓存density和scaledDensity，常用的dp值预先算好放在表里；
+ * 1. 颜色字符串解析一次之后缓存；
+ * 1. 每次只比较Configuration中的densityDpi和fontScale，变化时重新计算。
+ *
+ * 通过Context查找每次还是要读一次Resources和Configuration，自定义View应该用[metrics]拿到[Metrics]保存在字段里，
+ * 在onAttachedToWindow和onConfigurationChanged中重新获取，onDraw中直接用字段换算。
+ *
+ * 不同的Activity可能有不同的配置（多窗口、createConfigurationContext等），所以不统一用Application的Resources。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-25 10:20
+ */
+
+object UiResolver {
+
+    /**
+     * dp取值在[0, DP_TABLE_SIZE)内的直接查表
+     */
+    private const val DP_TABLE_SIZE = 256
+
+    private const val MAX_COLORS = 256
+
+    /**
+     * 一组Resources在某个配置下的取值，创建后不再修改，可以在任意线程使用。
+     * 配置变化时会创建新的实例，所以可以用===判断是否需要重新计算依赖尺寸的字段。
+     * 作为[mMetrics]的value不能强引用Resources，否则key永远不会被回收
+     */
+    class Metrics internal constructor(resources: Resources, config: Configuration) {
+        private val mResources = WeakReference(resources)
+        private val mDensityDpi = config.densityDpi
+        private val mFontScale = config.fontScale
+        val density: Float
+        val scaledDensity: Float
+
+        /**
+         * 整数dp对应的像素，已经四舍五入
+         */
+        private val mDpTable: IntArray
+
+        init {
+            val metrics = resources.displayMetrics
+            density = metrics.density
+            scaledDensity = metrics.scaledDensity
+            mDpTable = IntArray(DP_TABLE_SIZE) { Math.round(it * density) }
+        }
+
+        /**
+         * dp转px，四舍五入
+         */
+        fun dp2px(dp: Int): Int {
+            val table = mDpTable
+            return if (dp >= 0 && dp < table.size) table[dp] else Math.round(dp * density)
+        }
+
+        fun dp2px(dp: Float): Float {
+            return dp * density
+        }
+
+        fun sp2px(sp: Float): Float {
+            return sp * scaledDensity
+        }
+
+        internal fun matches(resources: Resources, config: Configuration): Boolean {
+            return resources === mResources.get() && config.densityDpi == mDensityDpi && config.fontScale == mFontScale
+        }
+    }
+
+    private val mLock = Any()
+
+    /**
+     * 最近一次使用的，大部分调用来自同一个界面，不用查表
+     */
+    @Volatile
+    private var mLast: Metrics? = null
+
+    /**
+     * Resources随界面销毁回收，持有[mLock]访问
+     */
+    private val mMetrics = WeakHashMap<Resources, Metrics>()
+
+    private val mColors = ConcurrentHashMap<String, Int>()
+
+    @JvmStatic
+    fun density(context: Context): Float {
+        return metrics(context).density
+    }
+
+    @JvmStatic
+    fun scaledDensity(context: Context): Float {
+        return metrics(context).scaledDensity
+    }
+
+    /**
+     * dp转px，四舍五入
+     */
+    @JvmStatic
+    fun dp2px(context: Context, dp: Int): Int {
+        return metrics(context).dp2px(dp)
+    }
+
+    @JvmStatic
+    fun dp2px(context: Context, dp: Float): Float {
+        return metrics(context).dp2px(dp)
+    }
+
+    @JvmStatic
+    fun sp2px(context: Context, sp: Float): Float {
+        return metrics(context).sp2px(sp)
+    }
+
+    /**
+     * 解析颜色字符串，[alpha]不为空时替换透明度
+     */
+    @ColorInt
+    @JvmStatic
+    @JvmOverloads
+    fun parseColor(colorStr: String, @FloatRange(from = 0.0, to = 1.0) alpha: Float? = null): Int {
+        var colorInt = mColors[colorStr]
+        if (colorInt == null) {
+            colorInt = Color.parseColor(colorStr)
+            if (mColors.size >= MAX_COLORS) {
+                mColors.clear()
+            }
+            mColors[colorStr] = colorInt
+        }
+        if (alpha != null) {
+            return ((alpha * 0xff).toInt() shl 24) or (colorInt and 0xffffff)
+        }
+        return colorInt
+    }
+
+    /**
+     * [context]当前配置下的[Metrics]，配置没有变化时返回同一个实例
+     */
+    @JvmStatic
+    fun metrics(context: Context): Metrics {
+        val resources = context.resources
+        val config = resources.configuration
+        val last = mLast
+        if (last != null && last.matches(resources, config)) {
+            return last
+        }
+        synchronized(mLock) {
+            var metrics = mMetrics[resources]
+            if (metrics == null || !metrics.matches(resources, config)) {
+                metrics = Metrics(resources, config)
+                mMetrics[resources] = metrics
+            }
+            mLast = metrics
+            return metrics
+        }
+    }
+}
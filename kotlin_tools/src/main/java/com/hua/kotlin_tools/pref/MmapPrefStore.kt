@@ -0,0 +1,779 @@
+package com.hua.kotlin_tools.pref
+
+import android.content.Context
+import android.preference.PreferenceManager
+import com.hua.kotlin_tools.AppExecutors
+import com.hua.kotlin_tools.LogUtil
+import com.hua.kotlin_tools.pref.PrefStore.Companion.REMOVED
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.CRC32
+
+/**
+ * 基于内存映射文件的存储，文件是一个只追加的日志，每次写入只追加一条记录。
+ *
+ * 文件格式（大端）：
+ * ```
+ * header(32字节): magic(4) version(4) end(4) sequence(4) generation(4) flags(4) 保留(8)
+ * record: length(4) crc32(4) body(length)
+ * body:   type(1) keyLength(2) key(utf8) value
+ * ```
+ * 1. 启动时顺序扫描一遍日志，在内存中建立key到value的索引，之后读操作只查索引；
+ * 1. 一次[putAll]的所有记录写完才更新header中的end，所以崩溃时要么整批生效要么整批丢弃，
+ *    扫描时遇到crc校验失败的记录会从这里截断；
+ * 1. 被覆盖或删除的记录是垃圾，垃圾超过[COMPACT_MIN_GARBAGE]且多于有效数据时在子线程重写文件。
+ *
+ * 通过[open]或[openDefault]打开，同一个进程内同一个文件只有一个实例。
+ *
+ * [multiProcess]为true时多个进程可以同时打开同一个文件：
+ * 1. 写操作持有文件锁，每次提交sequence加1；
+ * 1. 读操作发现header中的sequence和自己看到的不一样时，只扫描end之后新追加的记录；
+ * 1. 其他进程的映射指向同一个文件，所以不能用改名的方式compact，而是在文件锁内原地重写，
+ *    重写前先把新内容（带crc）写到旁路文件并设置flags，重写中途崩溃的话，
+ *    下一个拿到文件锁的进程（打开、写入或者同步时）先从旁路文件恢复，再继续操作。
+ *    compact之后generation加1，其他进程发现generation变化时在旁边重新建立索引，再整体替换。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-17 16:30
+ */
+
+class MmapPrefStore private constructor(
+        private val file: File,
+        private val multiProcess: Boolean = false
+) : BasePrefStore() {
+
+    private class Entry(val value: Any, val size: Int)
+
+    private val mLock = Any()
+
+    /**
+     * 读操作不加锁，重新建立索引时先建好新的再替换引用，不会读到一半的索引
+     */
+    @Volatile
+    private var mIndex = ConcurrentHashMap<String, Entry>()
+
+    private lateinit var mChannel: FileChannel
+
+    @Volatile
+    private lateinit var mBuffer: MappedByteBuffer
+
+    /**
+     * 日志末尾位置，也就是下一条记录写入的位置
+     */
+    private var mEnd = HEADER_SIZE
+
+    /**
+     * 索引中所有记录的大小之和，日志中其余部分都是垃圾
+     */
+    private var mLiveBytes = 0
+
+    /**
+     * 本进程最后一次同步时header中的sequence
+     */
+    @Volatile
+    private var mSequence = 0
+
+    private var mGeneration = 0
+
+    private var mCompacting = false
+
+    init {
+        file.parentFile?.mkdirs()
+        map()
+        withFileLock(false) {
+            load()
+        }
+    }
+
+    override val version: Int
+        get() {
+            checkRemote()
+            return super.version
+        }
+
+    override fun versionOf(stamp: PrefStamp): Int {
+        checkRemote()
+        return super.versionOf(stamp)
+    }
+
+    override fun getString(key: String, defaultValue: String?): String? {
+        checkRemote()
+        return mIndex[key]?.value as? String ?: defaultValue
+    }
+
+    override fun getInt(key: String, defaultValue: Int): Int {
+        checkRemote()
+        return mIndex[key]?.value as? Int ?: defaultValue
+    }
+
+    override fun getLong(key: String, defaultValue: Long): Long {
+        checkRemote()
+        return mIndex[key]?.value as? Long ?: defaultValue
+    }
+
+    override fun getBoolean(key: String, defaultValue: Boolean): Boolean {
+        checkRemote()
+        return mIndex[key]?.value as? Boolean ?: defaultValue
+    }
+
+    override fun getFloat(key: String, defaultValue: Float): Float {
+        checkRemote()
+        return mIndex[key]?.value as? Float ?: defaultValue
+    }
+
+    override fun contains(key: String): Boolean {
+        checkRemote()
+        return mIndex.containsKey(key)
+    }
+
+    override fun put(key: String, value: Any) {
+        putAll(mapOf(key to value))
+    }
+
+    override fun putAll(values: Map<String, Any>) {
+        val changedKeys = synchronized(mLock) {
+            withFileLock(false) {
+                val keys = syncFromFile()
+                var appended = false
+                for ((key, value) in values) {
+                    if (append(key, value)) {
+                        keys.add(key)
+                        appended = true
+                    }
+                }
+                if (appended) {
+                    commitEnd()
+                }
+                keys
+            }
+        }
+        for (key in changedKeys) {
+            notifyChanged(key)
+        }
+    }
+
+    /**
+     * 内存映射的数据进程崩溃也不会丢，这里只是为了应对断电
+     */
+    override fun flush(blocking: Boolean) {
+        if (blocking) {
+            synchronized(mLock) { mBuffer.force() }
+        } else {
+            AppExecutors.disk.execute { flush(true) }
+        }
+    }
+
+    /**
+     * 关闭之后同一个文件再次[open]会重新加载
+     */
+    fun close() {
+        synchronized(sOpened) {
+            if (sOpened[file.canonicalPath] === this) {
+                sOpened.remove(file.canonicalPath)
+            }
+        }
+        synchronized(mLock) {
+            if (!mChannel.isOpen) {
+                return
+            }
+            mBuffer.force()
+            mChannel.close()
+        }
+    }
+
+    /**
+     * 多进程时检查其他进程有没有写入，只读一个int，没有变化时开销很小
+     */
+    private fun checkRemote() {
+        if (!multiProcess || mBuffer.getInt(OFFSET_SEQUENCE) == mSequence) {
+            return
+        }
+        val changedKeys = synchronized(mLock) {
+            // 需要从旁路文件恢复时要写文件，换成独占锁重来
+            withFileLock(true) { if (needsRecovery()) null else syncFromFile() }
+                    ?: withFileLock(false) { syncFromFile() }
+        }
+        for (key in changedKeys) {
+            notifyChanged(key)
+        }
+    }
+
+    /**
+     * flags只会在其他进程持有独占锁compact时设置、结束前清除，持有文件锁还能看到说明那个进程崩溃了
+     */
+    private fun needsRecovery(): Boolean {
+        return mBuffer.getInt(OFFSET_FLAGS) and FLAG_COMPACTING != 0
+    }
+
+    /**
+     * 把其他进程的写入同步到索引中，必须持有[mLock]和文件锁，需要恢复时必须是独占锁。
+     * 其他进程原地compact中途崩溃时先恢复，否则追加的记录会在下次恢复时被旁路文件覆盖。
+     *
+     * @return 发生变化的key
+     */
+    private fun syncFromFile(): MutableList<String> {
+        val changedKeys = ArrayList<String>()
+        if (!multiProcess) {
+            return changedKeys
+        }
+        val recovered = needsRecovery()
+        if (recovered) {
+            restoreCompaction()
+        }
+        val sequence = mBuffer.getInt(OFFSET_SEQUENCE)
+        if (sequence == mSequence && !recovered) {
+            return changedKeys
+        }
+
+        // 其他进程可能把文件变大了
+        val fileSize = mChannel.size()
+        if (fileSize > mBuffer.capacity()) {
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize)
+        }
+        val buffer = mBuffer
+        val end = buffer.getInt(OFFSET_END).coerceIn(HEADER_SIZE, buffer.capacity())
+        val generation = buffer.getInt(OFFSET_GENERATION)
+        if (generation != mGeneration || recovered) {
+            val old = mIndex
+            val index = ConcurrentHashMap<String, Entry>()
+            mLiveBytes = 0
+            mEnd = scan(buffer, HEADER_SIZE, end, index, null)
+            mIndex = index
+            for ((key, entry) in old) {
+                if (index[key]?.value != entry.value) {
+                    changedKeys.add(key)
+                }
+            }
+            for (key in index.keys) {
+                if (!old.containsKey(key)) {
+                    changedKeys.add(key)
+                }
+            }
+        } else {
+            mEnd = scan(buffer, mEnd, end, mIndex, changedKeys)
+        }
+        mSequence = sequence
+        mGeneration = generation
+        if (changedKeys.isNotEmpty()) {
+            increaseVersion()
+        }
+        return changedKeys
+    }
+
+    /**
+     * 返回false表示值没有变化，不需要写
+     */
+    private fun append(key: String, value: Any): Boolean {
+        val old = mIndex[key]
+        if (value === REMOVED) {
+            if (old == null) {
+                return false
+            }
+        } else if (old != null && old.value == value) {
+            return false
+        }
+
+        val record = encode(key, value)
+        ensureCapacity(mEnd + record.size)
+        mBuffer.position(mEnd)
+        mBuffer.put(record)
+        mEnd += record.size
+        index(mIndex, key, value, record.size)
+        return true
+    }
+
+    /**
+     * 记录全部写完之后再更新end，end之后的数据在重新加载时会被忽略
+     */
+    private fun commitEnd() {
+        mBuffer.putInt(OFFSET_END, mEnd)
+        mSequence++
+        mBuffer.putInt(OFFSET_SEQUENCE, mSequence)
+        increaseVersion()
+        maybeCompact()
+    }
+
+    private fun index(index: MutableMap<String, Entry>, key: String, value: Any, size: Int) {
+        val old = if (value === REMOVED) {
+            index.remove(key)
+        } else {
+            index.put(key, Entry(value, size))
+        }
+        if (old != null) {
+            mLiveBytes -= old.size
+        }
+        if (value !== REMOVED) {
+            mLiveBytes += size
+        }
+    }
+
+    private fun map() {
+        mChannel = RandomAccessFile(file, "rw").channel
+        val size = Math.max(mChannel.size(), INITIAL_SIZE.toLong())
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size)
+    }
+
+    private fun ensureCapacity(required: Int) {
+        var capacity = mBuffer.capacity()
+        if (required <= capacity) {
+            return
+        }
+        while (capacity < required) {
+            capacity *= 2
+        }
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity.toLong())
+    }
+
+    private inline fun <T> withFileLock(shared: Boolean, block: () -> T): T {
+        if (!multiProcess) {
+            return block()
+        }
+        val lock = mChannel.lock(0, Long.MAX_VALUE, shared)
+        try {
+            return block()
+        } finally {
+            lock.release()
+        }
+    }
+
+    private fun load() {
+        val buffer = mBuffer
+        if (buffer.getInt(0) != MAGIC) {
+            if (buffer.getInt(0) != 0) {
+                LogUtil.e(TAG, "invalid magic, reset ${file.name}")
+            }
+            buffer.position(0)
+            buffer.put(header(HEADER_SIZE, 0, 0))
+            mEnd = HEADER_SIZE
+            return
+        }
+        if (buffer.getInt(OFFSET_FLAGS) and FLAG_COMPACTING != 0) {
+            restoreCompaction()
+        }
+
+        val current = mBuffer
+        val end = current.getInt(OFFSET_END).coerceIn(HEADER_SIZE, current.capacity())
+        val pos = scan(current, HEADER_SIZE, end, mIndex, null)
+        if (pos != end) {
+            LogUtil.w(TAG, "${file.name} is corrupted at $pos, drop ${end - pos} bytes")
+            current.putInt(OFFSET_END, pos)
+        }
+        mEnd = pos
+        mSequence = current.getInt(OFFSET_SEQUENCE)
+        mGeneration = current.getInt(OFFSET_GENERATION)
+    }
+
+    /**
+     * 从[start]开始读取记录直到[end]或者校验失败
+     *
+     * @return 最后一条有效记录的结束位置
+     */
+    private fun scan(buffer: ByteBuffer, start: Int, end: Int,
+                     index: MutableMap<String, Entry>, changedKeys: MutableList<String>?): Int {
+        var pos = start
+        while (pos < end) {
+            val size = readRecord(buffer, pos, end, index, changedKeys)
+            if (size <= 0) {
+                break
+            }
+            pos += size
+        }
+        return pos
+    }
+
+    /**
+     * 读取[pos]处的记录并更新[index]
+     *
+     * @return 记录的总长度，校验失败返回-1
+     */
+    private fun readRecord(buffer: ByteBuffer, pos: Int, limit: Int,
+                           index: MutableMap<String, Entry>, changedKeys: MutableList<String>?): Int {
+        if (pos + RECORD_HEADER_SIZE > limit) {
+            return -1
+        }
+        val length = buffer.getInt(pos)
+        val crc = buffer.getInt(pos + 4)
+        if (length < MIN_BODY_SIZE || length > limit - pos - RECORD_HEADER_SIZE) {
+            return -1
+        }
+        val body = ByteArray(length)
+        val dup = buffer.duplicate()
+        dup.position(pos + RECORD_HEADER_SIZE)
+        dup.get(body)
+        if (crc32(body, 0, length) != crc) {
+            return -1
+        }
+
+        val value: Any
+        val key: String
+        try {
+            val reader = ByteBuffer.wrap(body)
+            val type = reader.get()
+            val keyLength = reader.short.toInt() and 0xffff
+            key = String(body, reader.position(), keyLength, Charsets.UTF_8)
+            reader.position(reader.position() + keyLength)
+            value = when (type) {
+                TYPE_STRING -> {
+                    val valueLength = reader.int
+                    String(body, reader.position(), valueLength, Charsets.UTF_8)
+                }
+                TYPE_BOOLEAN -> reader.get() != 0.toByte()
+                TYPE_INT -> reader.int
+                TYPE_LONG -> reader.long
+                TYPE_FLOAT -> reader.float
+                TYPE_REMOVE -> REMOVED
+                else -> return -1
+            }
+        } catch (e: RuntimeException) {
+            // crc碰巧通过但内容不合法
+            return -1
+        }
+
+        if (changedKeys != null) {
+            val old = index[key]
+            val changed = if (value === REMOVED) old != null else old?.value != value
+            if (changed) {
+                changedKeys.add(key)
+            }
+        }
+        val size = RECORD_HEADER_SIZE + length
+        index(index, key, value, size)
+        return size
+    }
+
+    private fun maybeCompact() {
+        val garbage = mEnd - HEADER_SIZE - mLiveBytes
+        if (!mCompacting && garbage > COMPACT_MIN_GARBAGE && garbage > mLiveBytes) {
+            mCompacting = true
+            AppExecutors.disk.execute {
+                if (multiProcess) compactInPlace() else compact()
+            }
+        }
+    }
+
+    /**
+     * 先在锁外把当前所有有效记录写到临时文件，
+     * 再在锁内把这期间新追加的记录原样拷过去，然后替换原文件
+     */
+    private fun compact() {
+        val tmp = File(file.path + ".compact")
+        try {
+            val snapshotEnd: Int
+            val snapshot = synchronized(mLock) {
+                snapshotEnd = mEnd
+                mIndex.map { Pair(it.key, it.value.value) }
+            }
+
+            RandomAccessFile(tmp, "rw").use { raf ->
+                raf.setLength(0)
+                raf.write(ByteArray(HEADER_SIZE))
+                for ((key, value) in snapshot) {
+                    raf.write(encode(key, value))
+                }
+
+                synchronized(mLock) {
+                    val tail = ByteArray(mEnd - snapshotEnd)
+                    val dup = mBuffer.duplicate()
+                    dup.position(snapshotEnd)
+                    dup.get(tail)
+                    raf.write(tail)
+                    val newEnd = raf.filePointer.toInt()
+                    raf.seek(0)
+                    raf.write(header(newEnd, mSequence + 1, mGeneration + 1))
+                    raf.fd.sync()
+
+                    if (!tmp.renameTo(file)) {
+                        throw IOException("rename ${tmp.name} failed")
+                    }
+                    mChannel.close()
+                    map()
+                    mEnd = newEnd
+                    mSequence++
+                    mGeneration++
+                }
+            }
+        } catch (e: IOException) {
+            LogUtil.e(TAG, "compact ${file.name} failed", e)
+            tmp.delete()
+        } finally {
+            synchronized(mLock) {
+                mCompacting = false
+            }
+        }
+    }
+
+    /**
+     * 多进程时在文件锁内原地重写
+     */
+    private fun compactInPlace() {
+        val journal = File(file.path + ".journal")
+        val changedKeys = try {
+            synchronized(mLock) {
+                withFileLock(false) {
+                    val keys = syncFromFile()
+                    val out = ByteArrayOutputStream(mLiveBytes)
+                    for ((key, entry) in mIndex) {
+                        out.write(encode(key, entry.value))
+                    }
+                    val records = out.toByteArray()
+                    val newEnd = HEADER_SIZE + records.size
+                    val header = header(newEnd, mSequence + 1, mGeneration + 1)
+
+                    RandomAccessFile(journal, "rw").use { raf ->
+                        raf.setLength(0)
+                        raf.write(header)
+                        raf.write(records)
+                        val crc = CRC32()
+                        crc.update(header)
+                        crc.update(records)
+                        raf.writeInt(crc.value.toInt())
+                        raf.fd.sync()
+                    }
+                    mBuffer.putInt(OFFSET_FLAGS, FLAG_COMPACTING)
+                    mBuffer.force()
+
+                    mBuffer.position(HEADER_SIZE)
+                    mBuffer.put(records)
+                    mBuffer.position(0)
+                    mBuffer.put(header)
+                    mBuffer.force()
+                    journal.delete()
+
+                    mEnd = newEnd
+                    mSequence++
+                    mGeneration++
+                    keys
+                }
+            }
+        } catch (e: IOException) {
+            LogUtil.e(TAG, "compact ${file.name} failed", e)
+            return
+        } finally {
+            synchronized(mLock) {
+                mCompacting = false
+            }
+        }
+        for (key in changedKeys) {
+            notifyChanged(key)
+        }
+    }
+
+    /**
+     * 原地compact中途崩溃，用旁路文件覆盖。必须持有独占的文件锁。
+     *
+     * 旁路文件格式：header + records + crc32(header + records)，长度和crc都对才认为是完整的
+     */
+    private fun restoreCompaction() {
+        val journal = File(file.path + ".journal")
+        if (journal.length() >= HEADER_SIZE + 4) {
+            val bytes = journal.readBytes()
+            val size = bytes.size - 4
+            val wrapped = ByteBuffer.wrap(bytes)
+            if (wrapped.getInt(OFFSET_END) == size && wrapped.getInt(size) == crc32(bytes, 0, size)) {
+                LogUtil.w(TAG, "restore ${file.name} from journal")
+                ensureCapacity(size)
+                mBuffer.position(0)
+                mBuffer.put(bytes, 0, size)
+                mBuffer.force()
+                journal.delete()
+                return
+            }
+            LogUtil.e(TAG, "journal of ${file.name} is incomplete, ignore it")
+        }
+        // 旁路文件没写完就崩溃了，这时原文件还没有动过
+        mBuffer.putInt(OFFSET_FLAGS, 0)
+        journal.delete()
+    }
+
+    companion object {
+        private const val TAG = "MmapPrefStore"
+
+        private const val MAGIC = 0x50524546 // "PREF"
+        private const val VERSION = 1
+
+        private const val OFFSET_VERSION = 4
+        private const val OFFSET_END = 8
+        private const val OFFSET_SEQUENCE = 12
+        private const val OFFSET_GENERATION = 16
+        private const val OFFSET_FLAGS = 20
+        private const val HEADER_SIZE = 32
+
+        private const val FLAG_COMPACTING = 1
+
+        private const val RECORD_HEADER_SIZE = 8
+        private const val MIN_BODY_SIZE = 3
+
+        private const val INITIAL_SIZE = 16 * 1024
+        private const val COMPACT_MIN_GARBAGE = 16 * 1024
+
+        private const val TYPE_STRING: Byte = 1
+        private const val TYPE_BOOLEAN: Byte = 2
+        private const val TYPE_INT: Byte = 3
+        private const val TYPE_LONG: Byte = 4
+        private const val TYPE_FLOAT: Byte = 5
+        private const val TYPE_REMOVE: Byte = 6
+
+        private const val DEFAULT_FILE = "prefs/default.mmpref"
+
+        /**
+         * 进程内打开着的存储，key是文件的canonicalPath。
+         * 同一个进程对同一个文件只能有一个FileChannel，否则两个实例同时加文件锁会抛OverlappingFileLockException，
+         * 非多进程模式下两个实例各自追加也会互相覆盖
+         */
+        private val sOpened = HashMap<String, MmapPrefStore>()
+
+        /**
+         * 打开[file]，本进程已经打开过同一个文件时返回同一个实例
+         *
+         * @param multiProcess 是否有多个进程同时读写，同一个文件必须一致
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun open(file: File, multiProcess: Boolean = false): MmapPrefStore {
+            synchronized(sOpened) {
+                val path = file.canonicalPath
+                val opened = sOpened[path]
+                if (opened != null) {
+                    if (opened.multiProcess != multiProcess) {
+                        throw IllegalStateException("${file.name} already opened with multiProcess = ${opened.multiProcess}")
+                    }
+                    return opened
+                }
+                return MmapPrefStore(file, multiProcess).also { sOpened[path] = it }
+            }
+        }
+
+        /**
+         * 打开默认的存储文件，第一次打开时把默认SharedPreferences中的数据迁移过来
+         *
+         * @param multiProcess 是否有多个进程同时读写
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun openDefault(context: Context, multiProcess: Boolean = false): MmapPrefStore {
+            val file = File(context.filesDir, DEFAULT_FILE)
+            // 持有sOpened，本进程内preload和init同时打开时只有一个线程迁移，迁移用的文件锁也不会重叠
+            synchronized(sOpened) {
+                if (!file.exists()) {
+                    file.parentFile?.mkdirs()
+                    // 多个进程可能同时启动，用文件锁保证只迁移一次
+                    val lockChannel = RandomAccessFile(File(file.path + ".lock"), "rw").channel
+                    val lock = lockChannel.lock()
+                    try {
+                        if (!file.exists()) {
+                            migrate(context, file)
+                        }
+                    } finally {
+                        lock.release()
+                        lockChannel.close()
+                    }
+                }
+                return open(file, multiProcess)
+            }
+        }
+
+        /**
+         * 先写到临时文件再改名，迁移中途崩溃下次会重新迁移
+         */
+        private fun migrate(context: Context, file: File) {
+            val tmp = File(file.path + ".migrate")
+            tmp.delete()
+            val values = HashMap<String, Any>()
+            val all = PreferenceManager.getDefaultSharedPreferences(context.applicationContext).all
+            for ((key, value) in all) {
+                if (value is String || value is Boolean || value is Int || value is Long || value is Float) {
+                    values[key] = value
+                } else {
+                    LogUtil.w(TAG, "skip unsupported value, key = $key")
+                }
+            }
+            val store = MmapPrefStore(tmp)
+            store.putAll(values)
+            store.close()
+            if (!tmp.renameTo(file)) {
+                LogUtil.e(TAG, "migrate to ${file.name} failed")
+            }
+        }
+
+        private fun header(end: Int, sequence: Int, generation: Int): ByteArray {
+            val header = ByteBuffer.allocate(HEADER_SIZE)
+            header.putInt(0, MAGIC)
+            header.putInt(OFFSET_VERSION, VERSION)
+            header.putInt(OFFSET_END, end)
+            header.putInt(OFFSET_SEQUENCE, sequence)
+            header.putInt(OFFSET_GENERATION, generation)
+            return header.array()
+        }
+
+        private fun encode(key: String, value: Any): ByteArray {
+            val keyBytes = key.toByteArray(Charsets.UTF_8)
+            if (keyBytes.size > 0xffff) {
+                throw IllegalArgumentException("key too long: $key")
+            }
+            val stringBytes = (value as? String)?.toByteArray(Charsets.UTF_8)
+            val type: Byte
+            val valueSize: Int
+            when {
+                value === REMOVED -> {
+                    type = TYPE_REMOVE
+                    valueSize = 0
+                }
+                stringBytes != null -> {
+                    type = TYPE_STRING
+                    valueSize = 4 + stringBytes.size
+                }
+                value is Boolean -> {
+                    type = TYPE_BOOLEAN
+                    valueSize = 1
+                }
+                value is Int -> {
+                    type = TYPE_INT
+                    valueSize = 4
+                }
+                value is Long -> {
+                    type = TYPE_LONG
+                    valueSize = 8
+                }
+                value is Float -> {
+                    type = TYPE_FLOAT
+                    valueSize = 4
+                }
+                else -> throw IllegalArgumentException("unsupported value type: ${value.javaClass}")
+            }
+
+            val bodySize = 1 + 2 + keyBytes.size + valueSize
+            val record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodySize)
+            record.position(RECORD_HEADER_SIZE)
+            record.put(type)
+            record.putShort(keyBytes.size.toShort())
+            record.put(keyBytes)
+            when (type) {
+                TYPE_STRING -> {
+                    record.putInt(stringBytes!!.size)
+                    record.put(stringBytes)
+                }
+                TYPE_BOOLEAN -> record.put(if (value as Boolean) 1.toByte() else 0.toByte())
+                TYPE_INT -> record.putInt(value as Int)
+                TYPE_LONG -> record.putLong(value as Long)
+                TYPE_FLOAT -> record.putFloat(value as Float)
+            }
+            val array = record.array()
+            record.putInt(0, bodySize)
+            record.putInt(4, crc32(array, RECORD_HEADER_SIZE, bodySize))
+            return array
+        }
+
+        private fun crc32(bytes: ByteArray, offset: Int, length: Int): Int {
+            val crc = CRC32()
+            crc.update(bytes, offset, length)
+            return crc.value.toInt()
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.hua.kotlin_tools.pref
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * [com.hua.kotlin_tools.PrefUtil]背后的存储引擎
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-16 10:05
+ */
+
+interface PrefStore {
+
+    fun getString(key: String, defaultValue: String?): String?
+
+    fun getInt(key: String, defaultValue: Int): Int
+
+    fun getLong(key: String, defaultValue: Long): Long
+
+    fun getBoolean(key: String, defaultValue: Boolean): Boolean
+
+    fun getFloat(key: String, defaultValue: Float): Float
+
+    fun contains(key: String): Boolean
+
+    /**
+     * 支持String、Boolean、Int、Long、Float，value为[REMOVED]表示删除
+     */
+    fun put(key: String, value: Any)
+
+    /**
+     * 在一个事务中写入多个key
+     */
+    fun putAll(values: Map<String, Any>)
+
+    /**
+     * @param blocking true表示在当前线程落盘完成再返回
+     */
+    fun flush(blocking: Boolean)
+
+    /**
+     * 阻塞直到数据从磁盘加载完成，用于预加载
+     */
+    fun warmUp() {
+    }
+
+    /**
+     * 每次有数据真正发生变化时加1，用于判断缓存是否过期
+     */
+    val version: Int
+
+    /**
+     * [key]的版本戳，同一个key总是返回同一个对象
+     */
+    fun stampOf(key: String): PrefStamp
+
+    /**
+     * [stamp]对应的key的值每次真正发生变化时加1，其他key的写入不影响它
+     */
+    fun versionOf(stamp: PrefStamp): Int
+
+    /**
+     * 只有值真正发生变化时才回调，在写入的线程回调
+     */
+    fun addChangeListener(listener: (key: String) -> Unit)
+
+    fun removeChangeListener(listener: (key: String) -> Unit)
+
+    companion object {
+        /**
+         * 表示删除的value
+         */
+        @JvmField
+        val REMOVED = Any()
+    }
+}
+
+/**
+ * 单个key的版本号，给属性委托判断缓存是否过期
+ */
+class PrefStamp internal constructor() {
+    internal val mVersion = AtomicInteger()
+}
+
+abstract class BasePrefStore : PrefStore {
+
+    @Volatile
+    private var mVersion = 0
+
+    override val version: Int
+        get() = mVersion
+
+    private val mListeners = CopyOnWriteArrayList<(String) -> Unit>()
+
+    private val mStamps = ConcurrentHashMap<String, PrefStamp>()
+
+    override fun stampOf(key: String): PrefStamp {
+        return mStamps.getOrPut(key) { PrefStamp() }
+    }
+
+    override fun versionOf(stamp: PrefStamp): Int {
+        return stamp.mVersion.get()
+    }
+
+    override fun addChangeListener(listener: (key: String) -> Unit) {
+        mListeners.add(listener)
+    }
+
+    override fun removeChangeListener(listener: (key: String) -> Unit) {
+        mListeners.remove(listener)
+    }
+
+    /**
+     * 必须在持有写锁时调用，保证数据可见之后版本号才变化
+     */
+    protected fun increaseVersion() {
+        mVersion++
+    }
+
+    /**
+     * 不要在持有写锁时调用，避免回调中再写入导致死锁。
+     * 这时新值已经可见，所以在这里更新key的版本戳
+     */
+    protected fun notifyChanged(key: String) {
+        mStamps[key]?.mVersion?.incrementAndGet()
+        for (listener in mListeners) {
+            listener(key)
+        }
+    }
+}
+
+enum class PrefEngine {
+    /**
+     * 默认的SharedPreferences，带写缓存
+     */
+    SHARED_PREFERENCES,
+
+    /**
+     * 内存映射的追加写日志，见[MmapPrefStore]
+     */
+    MMAP,
+
+    /**
+     * 与[MMAP]使用同一个文件，多个进程可以同时读写，写操作需要加文件锁
+     */
+    MMAP_MULTI_PROCESS
+}
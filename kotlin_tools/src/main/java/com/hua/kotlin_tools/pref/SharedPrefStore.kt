@@ -0,0 +1,206 @@
+package com.hua.kotlin_tools.pref
+
+import android.content.SharedPreferences
+import com.hua.kotlin_tools.AppExecutors
+import com.hua.kotlin_tools.mMainHandler
+import com.hua.kotlin_tools.pref.PrefStore.Companion.REMOVED
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * 基于SharedPreferences的存储。
+ *
+ * 写操作先进入内存缓存，读操作优先读缓存，缓存每隔[flushIntervalMs]在子线程合并成一次commit写入文件。
+ * 这样连续写很多个key只会重写一次xml，也不会因为apply()排队导致Activity onPause时卡主线程。
+ *
+ * 缓存中的数据在落盘之前只在内存中，进程被杀会丢失，所以[com.hua.kotlin_tools.PrefUtil]
+ * 在Activity onPause和应用退到后台时马上在子线程调用[flush]。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-16 10:20
+ */
+
+class SharedPrefStore(private val prefs: SharedPreferences,
+                      private val flushIntervalMs: Long) : BasePrefStore() {
+
+    private val mLock = Any()
+
+    /**
+     * 保证同一时间只有一个线程在落盘，否则先取快照的可能后commit，覆盖掉新值
+     */
+    private val mFlushLock = Any()
+
+    /**
+     * 还没有落盘的数据，value为[REMOVED]表示删除
+     */
+    private val mPending = ConcurrentHashMap<String, Any>()
+
+    private var mFlushScheduled = false
+
+    private val mFlushRunnable = Runnable {
+        AppExecutors.disk.execute { flushNow() }
+    }
+
+    override fun getString(key: String, defaultValue: String?): String? {
+        val pending = mPending[key]
+        if (pending != null) {
+            return pending as? String ?: defaultValue
+        }
+        return prefs.getString(key, defaultValue)
+    }
+
+    override fun getInt(key: String, defaultValue: Int): Int {
+        val pending = mPending[key]
+        if (pending != null) {
+            return pending as? Int ?: defaultValue
+        }
+        return prefs.getInt(key, defaultValue)
+    }
+
+    override fun getLong(key: String, defaultValue: Long): Long {
+        val pending = mPending[key]
+        if (pending != null) {
+            return pending as? Long ?: defaultValue
+        }
+        return prefs.getLong(key, defaultValue)
+    }
+
+    override fun getBoolean(key: String, defaultValue: Boolean): Boolean {
+        val pending = mPending[key]
+        if (pending != null) {
+            return pending as? Boolean ?: defaultValue
+        }
+        return prefs.getBoolean(key, defaultValue)
+    }
+
+    override fun getFloat(key: String, defaultValue: Float): Float {
+        val pending = mPending[key]
+        if (pending != null) {
+            return pending as? Float ?: defaultValue
+        }
+        return prefs.getFloat(key, defaultValue)
+    }
+
+    override fun contains(key: String): Boolean {
+        val pending = mPending[key]
+        if (pending != null) {
+            return pending !== REMOVED
+        }
+        return prefs.contains(key)
+    }
+
+    override fun put(key: String, value: Any) {
+        val changed: Boolean
+        synchronized(mLock) {
+            changed = !isSame(key, value)
+            if (changed) {
+                mPending[key] = value
+                increaseVersion()
+                scheduleFlush()
+            }
+        }
+        if (changed) {
+            notifyChanged(key)
+        }
+    }
+
+    override fun putAll(values: Map<String, Any>) {
+        val changedKeys = ArrayList<String>()
+        synchronized(mLock) {
+            for ((key, value) in values) {
+                if (!isSame(key, value)) {
+                    mPending[key] = value
+                    changedKeys.add(key)
+                }
+            }
+            if (changedKeys.isNotEmpty()) {
+                increaseVersion()
+                scheduleFlush()
+            }
+        }
+        for (key in changedKeys) {
+            notifyChanged(key)
+        }
+    }
+
+    override fun flush(blocking: Boolean) {
+        if (blocking) {
+            flushNow()
+        } else {
+            AppExecutors.disk.execute { flushNow() }
+        }
+    }
+
+    /**
+     * SharedPreferences创建时已经在子线程开始加载，任何读操作都会等待加载完成
+     */
+    override fun warmUp() {
+        prefs.contains("")
+    }
+
+    /**
+     * 注意直接通过SharedPreferences写入的数据不经过这里，也不会触发版本号变化和回调
+     */
+    private fun isSame(key: String, value: Any): Boolean {
+        val pending = mPending[key]
+        if (pending != null) {
+            return pending == value
+        }
+        if (!prefs.contains(key)) {
+            return value === REMOVED
+        }
+        return try {
+            when (value) {
+                is String -> prefs.getString(key, null) == value
+                is Boolean -> prefs.getBoolean(key, false) == value
+                is Long -> prefs.getLong(key, 0L) == value
+                is Int -> prefs.getInt(key, 0) == value
+                is Float -> prefs.getFloat(key, 0f) == value
+                else -> false
+            }
+        } catch (e: ClassCastException) {
+            false
+        }
+    }
+
+    private fun scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true
+            mMainHandler.postDelayed(mFlushRunnable, flushIntervalMs)
+        }
+    }
+
+    private fun flushNow() {
+        synchronized(mFlushLock) {
+            val snapshot: Map<String, Any>
+            synchronized(mLock) {
+                mFlushScheduled = false
+                mMainHandler.removeCallbacks(mFlushRunnable)
+                if (mPending.isEmpty()) {
+                    return
+                }
+                snapshot = HashMap(mPending)
+            }
+
+            val editor = prefs.edit()
+            for ((key, value) in snapshot) {
+                when (value) {
+                    REMOVED -> editor.remove(key)
+                    is String -> editor.putString(key, value)
+                    is Boolean -> editor.putBoolean(key, value)
+                    is Long -> editor.putLong(key, value)
+                    is Int -> editor.putInt(key, value)
+                    is Float -> editor.putFloat(key, value)
+                }
+            }
+            // commit之后SharedPreferences的内存数据已经是新的，这时再从缓存中移除，读操作不会读到旧值
+            editor.commit()
+
+            synchronized(mLock) {
+                for ((key, value) in snapshot) {
+                    mPending.remove(key, value)
+                }
+            }
+        }
+    }
+}
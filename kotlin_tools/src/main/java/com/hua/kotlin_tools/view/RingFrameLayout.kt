@@ -1,6 +1,7 @@
 package com.hua.kotlin_tools.view
 
 import android.content.Context
+import android.content.res.Configuration
 import android.graphics.*
 import android.os.Build
 import android.util.AttributeSet
@@ -9,6 +10,7 @@ import android.view.ViewOutlineProvider
 import android.widget.FrameLayout
 import androidx.annotation.RequiresApi
 import com.hua.kotlin_tools.R
+import com.hua.kotlin_tools.UiResolver
 
 /**
  * 带圆环的FrameLayout
@@ -28,6 +30,11 @@ class RingFrameLayout(context: Context, attrs: AttributeSet?, defStyle: Int) : F
 
     constructor(context: Context, attrs: AttributeSet?) : this(context, attrs, 0)
 
+    /**
+     * 当前配置下的尺寸换算，attach和配置变化时更新
+     */
+    private var mMetrics = UiResolver.metrics(context)
+
     private val DEFAULT_RING_RADIUS by lazy { dip(10) }
     private val DEFAULT_RING_WIDTH by lazy { dip(3) }
 
@@ -79,8 +86,17 @@ class RingFrameLayout(context: Context, attrs: AttributeSet?, defStyle: Int) : F
         canvas.drawPath(mPath, mPaint)
     }
 
+    override fun onAttachedToWindow() {
+        super.onAttachedToWindow()
+        mMetrics = UiResolver.metrics(context)
+    }
+
+    override fun onConfigurationChanged(newConfig: Configuration?) {
+        super.onConfigurationChanged(newConfig)
+        mMetrics = UiResolver.metrics(context)
+    }
+
     fun dip(dpValue: Int): Float {
-        val density = context.resources.displayMetrics.density
-        return (dpValue * density)
+        return mMetrics.dp2px(dpValue.toFloat())
     }
 }
\ No newline at end of file
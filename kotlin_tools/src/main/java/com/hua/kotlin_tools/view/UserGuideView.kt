@@ -2,14 +2,15 @@ package com.hua.kotlin_tools.view
 
 import android.app.Activity
 import android.content.Context
+import android.content.res.Configuration
 import android.graphics.*
 import android.util.AttributeSet
 import android.util.DisplayMetrics
 import android.view.*
-import androidx.annotation.ColorInt
-import androidx.annotation.FloatRange
 import com.hua.kotlin_tools.LogUtil
 import com.hua.kotlin_tools.R
+import com.hua.kotlin_tools.UiResolver
+import com.hua.kotlin_tools.parseColorAlpha
 import com.hua.kotlin_tools.setVisible
 import java.lang.IllegalArgumentException
 import java.lang.IllegalStateException
@@ -37,8 +38,16 @@ class UserGuideView(context: Context, attrs: AttributeSet?, defStyle: Int)
     private var mFgBitmap: Bitmap? = null
     private lateinit var mFgCanvas: Canvas
     private lateinit var mArrowBitmap: Bitmap
-    private val mArrowWidth by lazy { dip(19) }
-    private val mArrowHeight by lazy { dip(49) }
+
+    /**
+     * 当前配置下的尺寸换算，attach和配置变化时更新，下面依赖尺寸的字段在[applyMetrics]中一起计算
+     */
+    private var mMetrics = UiResolver.metrics(context)
+    private var mArrowWidth = 0
+    private var mArrowHeight = 0
+    private var mArrowMargin = 0
+    private var mTextMargin = 0
+    private var mDashedPadding = 0
     private val mTempRect = Rect()
     private val mMatrix = Matrix()
 
@@ -101,7 +110,6 @@ class UserGuideView(context: Context, attrs: AttributeSet?, defStyle: Int)
         mDashedPaint.run {
             color = Color.WHITE
             style = Paint.Style.STROKE
-            strokeWidth = dip(2).toFloat()
             isAntiAlias = true
             pathEffect = DashPathEffect(floatArrayOf(16f, 8f), 0f)
         }
@@ -113,10 +121,11 @@ class UserGuideView(context: Context, attrs: AttributeSet?, defStyle: Int)
 
         mTextPaint.run {
             color = Color.WHITE
-            textSize = sp(15f).toFloat()
             isAntiAlias = true
         }
 
+        applyMetrics()
+
         mArrowBitmap = BitmapFactory.decodeResource(context.resources, R.drawable.ic_home_guide_arrow)
 
         mGestureDetector = GestureDetector(context, object : GestureDetector.SimpleOnGestureListener() {
@@ -135,6 +144,35 @@ class UserGuideView(context: Context, attrs: AttributeSet?, defStyle: Int)
         dismiss()
     }
 
+    override fun onAttachedToWindow() {
+        super.onAttachedToWindow()
+        updateMetrics()
+    }
+
+    override fun onConfigurationChanged(newConfig: Configuration?) {
+        super.onConfigurationChanged(newConfig)
+        updateMetrics()
+    }
+
+    private fun updateMetrics() {
+        val metrics = UiResolver.metrics(context)
+        if (metrics !== mMetrics) {
+            mMetrics = metrics
+            applyMetrics()
+            invalidate()
+        }
+    }
+
+    private fun applyMetrics() {
+        mArrowWidth = dip(19)
+        mArrowHeight = dip(49)
+        mArrowMargin = dip(9)
+        mTextMargin = dip(6)
+        mDashedPadding = dip(DASHED_PADDING)
+        mDashedPaint.strokeWidth = dip(2).toFloat()
+        mTextPaint.textSize = sp(15f).toFloat()
+    }
+
     override fun onMeasure(widthMeasureSpec: Int, heightMeasureSpec: Int) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec)
     }
@@ -199,7 +237,7 @@ class UserGuideView(context: Context, attrs: AttributeSet?, defStyle: Int)
         val targetWidth = target.width
         val targetHeight = target.height
 
-        val dashedPadding = if (mEnablePadding) dip(DASHED_PADDING) else 0
+        val dashedPadding = if (mEnablePadding) mDashedPadding else 0
 
         val dashedRect = mTempRect
         when (mDashedShape) {
@@ -256,7 +294,7 @@ class UserGuideView(context: Context, attrs: AttributeSet?, defStyle: Int)
         when (quadrant) {
             0 -> { // 右下
                 val arrowLeft = (dashedCx - mArrowWidth / 2f).toInt()
-                val arrowBottom = dashedRect.top - dip(9)
+                val arrowBottom = dashedRect.top - mArrowMargin
                 arrowRect.set(arrowLeft, arrowBottom - mArrowHeight,
                         arrowLeft + mArrowWidth,
                         arrowBottom)
@@ -264,7 +302,7 @@ class UserGuideView(context: Context, attrs: AttributeSet?, defStyle: Int)
             }
             1 -> { // 右上
                 val arrowLeft = (dashedCx - mArrowWidth / 2f).toInt()
-                val arrowTop = dashedRect.bottom + dip(9)
+                val arrowTop = dashedRect.bottom + mArrowMargin
                 arrowRect.set(arrowLeft, arrowTop,
                         arrowLeft + mArrowWidth,
                         arrowTop + mArrowHeight)
@@ -277,7 +315,7 @@ class UserGuideView(context: Context, attrs: AttributeSet?, defStyle: Int)
             }
             2 -> { // 左上
                 val arrowLeft = (dashedCx - mArrowWidth / 2f).toInt()
-                val arrowTop = dashedRect.bottom + dip(9)
+                val arrowTop = dashedRect.bottom + mArrowMargin
                 arrowRect.set(arrowLeft, arrowTop,
                         arrowLeft + mArrowWidth,
                         arrowTop + mArrowHeight)
@@ -290,7 +328,7 @@ class UserGuideView(context: Context, attrs: AttributeSet?, defStyle: Int)
             }
             3 -> { // 左下
                 val arrowLeft = (dashedCx - mArrowWidth / 2f).toInt()
-                val arrowBottom = dashedRect.top - dip(9)
+                val arrowBottom = dashedRect.top - mArrowMargin
                 arrowRect.set(arrowLeft, arrowBottom - mArrowHeight,
                         arrowLeft + mArrowWidth,
                         arrowBottom)
@@ -323,26 +361,26 @@ class UserGuideView(context: Context, attrs: AttributeSet?, defStyle: Int)
         val baselineDelta = Math.abs(mTextPaint.fontMetrics.ascent) - textHeight / 2
         when (dashedQuadrant) {
             0 -> { // 右下
-                val x = arrowRect.left - dip(6)
+                val x = arrowRect.left - mTextMargin
                 val y = arrowRect.top + baselineDelta
                 mTextPaint.textAlign = Paint.Align.RIGHT
                 canvas.drawText(mGuideText, x.toFloat(), y, mTextPaint)
             }
             1 -> { // 右上
-                val x = arrowRect.left - dip(6)
+                val x = arrowRect.left - mTextMargin
                 val y = arrowRect.bottom + baselineDelta
                 mTextPaint.textAlign = Paint.Align.RIGHT
                 canvas.drawText(mGuideText, x.toFloat(), y, mTextPaint)
             }
             2 -> { // 左上
-                val x = arrowRect.right + dip(6)
+                val x = arrowRect.right + mTextMargin
                 val y = arrowRect.bottom + baselineDelta
                 mTextPaint.fontMetrics.top
                 mTextPaint.textAlign = Paint.Align.LEFT
                 canvas.drawText(mGuideText, x.toFloat(), y, mTextPaint)
             }
             3 -> { // 左下
-                val x = arrowRect.right + dip(6)
+                val x = arrowRect.right + mTextMargin
                 val y = arrowRect.top + baselineDelta
                 mTextPaint.textAlign = Paint.Align.LEFT
                 canvas.drawText(mGuideText, x.toFloat(), y, mTextPaint)
@@ -360,13 +398,11 @@ class UserGuideView(context: Context, attrs: AttributeSet?, defStyle: Int)
     }
 
     private fun dip(dpValue: Int): Int {
-        val density = context.resources.displayMetrics.density
-        return Math.round(dpValue * density)
+        return mMetrics.dp2px(dpValue)
     }
 
     fun sp(sp: Float): Int {
-        val density = context.resources.displayMetrics.scaledDensity
-        return Math.round(sp * density)
+        return Math.round(mMetrics.sp2px(sp))
     }
 
     companion object {
@@ -385,18 +421,6 @@ data class ArrowPos(
         val quadrant: Int
 )
 
-@ColorInt
-fun parseColorAlpha(colorStr: String, @FloatRange(from = 0.0, to = 1.0) alpha: Float? = null): Int {
-    val colorInt = Color.parseColor(colorStr)
-    if (alpha != null) {
-        val red = Color.red(colorInt)
-        val green = Color.green(colorInt)
-        val blue = Color.blue(colorInt)
-        return Color.argb((alpha * 0xff).toInt(), red, green, blue)
-    }
-    return colorInt
-}
-
 fun getScreenSize(context: Context): IntArray {
     val metrics = DisplayMetrics()
     val windowManager = context.getSystemService(Context.WINDOW_SERVICE) as WindowManager
@@ -0,0 +1,134 @@
+package com.hua.kotlin_tools.bench
+
+import java.lang.management.ManagementFactory
+import java.util.Locale
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 简单的benchmark工具，统计耗时、吞吐量和每次操作分配的内存。
+ *
+ * 分配内存通过[com.sun.management.ThreadMXBean]统计，只在HotSpot/OpenJDK上有效，其余JVM输出-1。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-18 10:10
+ */
+
+object Bench {
+
+    /**
+     * 通过gradle参数-Pbench打开，普通的单元测试不运行benchmark
+     */
+    @JvmStatic
+    val enabled: Boolean = java.lang.Boolean.getBoolean("pref.bench")
+
+    private const val WARM_UP_ROUNDS = 3
+
+    private val mThreadBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+
+    class Result(val name: String, val ops: Long, val nanos: Long, val allocatedBytes: Long) {
+
+        val nanosPerOp: Double
+            get() = nanos.toDouble() / ops
+
+        val opsPerSecond: Double
+            get() = ops * 1_000_000_000.0 / nanos
+
+        val bytesPerOp: Double
+            get() = if (allocatedBytes < 0) -1.0 else allocatedBytes.toDouble() / ops
+
+        override fun toString(): String {
+            return String.format(Locale.US, "%-48s %10d ops %12.1f ns/op %14.1f ops/s %10.1f B/op",
+                    name, ops, nanosPerOp, opsPerSecond, bytesPerOp)
+        }
+    }
+
+    /**
+     * 先预热[WARM_UP_ROUNDS]轮再正式统计一轮，[block]执行[ops]次操作
+     */
+    @JvmStatic
+    fun measure(name: String, ops: Long, block: () -> Unit): Result {
+        for (i in 0 until WARM_UP_ROUNDS) {
+            block()
+        }
+        val allocStart = allocatedBytes()
+        val start = System.nanoTime()
+        block()
+        val nanos = System.nanoTime() - start
+        val allocEnd = allocatedBytes()
+        return report(Result(name, ops, nanos, if (allocStart < 0) -1 else allocEnd - allocStart))
+    }
+
+    /**
+     * 每次调用[setUp]准备数据（不计时），再统计[block]一次的耗时，之后用[tearDown]释放[block]的结果（不计时），
+     * 重复[rounds]次。预热轮同样会调用[tearDown]，资源不会累积到后面的轮次
+     */
+    @JvmStatic
+    fun <T, R> measureEach(name: String, rounds: Int, setUp: (round: Int) -> T, tearDown: (R) -> Unit,
+                           block: (T) -> R): Result {
+        for (i in 0 until WARM_UP_ROUNDS) {
+            tearDown(block(setUp(-1 - i)))
+        }
+        var nanos = 0L
+        var allocated = 0L
+        for (i in 0 until rounds) {
+            val input = setUp(i)
+            val allocStart = allocatedBytes()
+            val start = System.nanoTime()
+            val output = block(input)
+            nanos += System.nanoTime() - start
+            allocated = if (allocStart < 0 || allocated < 0) -1 else allocated + allocatedBytes() - allocStart
+            tearDown(output)
+        }
+        return report(Result(name, rounds.toLong(), nanos, allocated))
+    }
+
+    /**
+     * 同时启动[threads]个线程，第i个线程执行[block](i)，统计所有线程一起完成的耗时，
+     * 分配内存是所有线程之和
+     */
+    @JvmStatic
+    fun measureConcurrent(name: String, threads: Int, opsPerThread: Long, block: (thread: Int) -> Unit): Result {
+        runConcurrent(threads, block)
+
+        val allocated = AtomicLong()
+        val ready = CountDownLatch(threads)
+        val go = CountDownLatch(1)
+        val done = CountDownLatch(threads)
+        val workers = (0 until threads).map { index ->
+            Thread {
+                ready.countDown()
+                go.await()
+                val allocStart = allocatedBytes()
+                block(index)
+                val allocEnd = allocatedBytes()
+                allocated.addAndGet(if (allocStart < 0) -1 else allocEnd - allocStart)
+                done.countDown()
+            }.also { it.start() }
+        }
+        ready.await()
+        val start = System.nanoTime()
+        go.countDown()
+        done.await()
+        val nanos = System.nanoTime() - start
+        workers.forEach { it.join() }
+        val bytes = if (allocated.get() < 0) -1 else allocated.get()
+        return report(Result(name, threads * opsPerThread, nanos, bytes))
+    }
+
+    private fun runConcurrent(threads: Int, block: (thread: Int) -> Unit) {
+        (0 until threads).map { index -> Thread { block(index) }.also { it.start() } }
+                .forEach { it.join() }
+    }
+
+    private fun allocatedBytes(): Long {
+        val bean = mThreadBean ?: return -1
+        return bean.getThreadAllocatedBytes(Thread.currentThread().id)
+    }
+
+    private fun report(result: Result): Result {
+        println(result)
+        return result
+    }
+}
@@ -0,0 +1,49 @@
+package com.hua.kotlin_tools.bench
+
+import com.hua.kotlin_tools.pref.MmapPrefStore
+import com.hua.kotlin_tools.pref.PrefStore
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+/**
+ * [MmapPrefStore]不依赖android，直接在JVM上运行
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-18 11:00
+ */
+
+open class MmapPrefStoreBenchmark : PrefStoreBenchmark() {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    protected open val multiProcess = false
+
+    override val engineName: String
+        get() = if (multiProcess) "mmap(multi-process)" else "mmap"
+
+    override fun open(name: String): PrefStore {
+        return MmapPrefStore.open(file(name), multiProcess)
+    }
+
+    override fun close(store: PrefStore) {
+        (store as MmapPrefStore).close()
+    }
+
+    override fun copy(from: String, to: String) {
+        file(from).copyTo(file(to), true)
+    }
+
+    override fun delete(name: String) {
+        file(name).delete()
+    }
+
+    private fun file(name: String) = File(folder.root, "$name.mmpref")
+}
+
+class MultiProcessMmapPrefStoreBenchmark : MmapPrefStoreBenchmark() {
+
+    override val multiProcess = true
+}
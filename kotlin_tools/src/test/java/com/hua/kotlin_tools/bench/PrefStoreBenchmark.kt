@@ -0,0 +1,187 @@
+package com.hua.kotlin_tools.bench
+
+import com.hua.kotlin_tools.pref.PrefStore
+import org.junit.Assert.assertEquals
+import org.junit.After
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * [PrefStore]的benchmark，子类提供具体的存储引擎。
+ *
+ * 运行：./gradlew :kotlin_tools:testDebugUnitTest -Pbench --tests '*Benchmark'
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-18 10:30
+ */
+
+abstract class PrefStoreBenchmark {
+
+    /**
+     * 打开名为[name]的存储，同名的存储对应同一个文件
+     */
+    protected abstract fun open(name: String): PrefStore
+
+    /**
+     * 关闭存储，保证数据已经落盘
+     */
+    protected abstract fun close(store: PrefStore)
+
+    /**
+     * 把[from]的文件拷贝一份作为[to]，用于测冷启动加载
+     */
+    protected abstract fun copy(from: String, to: String)
+
+    /**
+     * 删除[name]对应的文件，存储必须已经关闭
+     */
+    protected abstract fun delete(name: String)
+
+    protected abstract val engineName: String
+
+    /**
+     * 冷启动加载时拷贝出来的文件，测试结束后删除
+     */
+    private val mCopies = ArrayList<String>()
+
+    @Before
+    fun checkEnabled() {
+        assumeTrue("pass -Pbench to run benchmarks", Bench.enabled)
+    }
+
+    @After
+    fun deleteCopies() {
+        for (name in mCopies) {
+            delete(name)
+        }
+        mCopies.clear()
+    }
+
+    @Test
+    fun coldLoad() {
+        for (keys in intArrayOf(100, 1_000, 10_000)) {
+            val name = "cold_$keys"
+            val store = open(name)
+            store.putAll(values(keys))
+            close(store)
+
+            Bench.measureEach("$engineName cold load $keys keys", COLD_LOAD_ROUNDS, { round ->
+                val copyName = "${name}_$round"
+                copy(name, copyName)
+                mCopies.add(copyName)
+                copyName
+            }, { loaded: PrefStore ->
+                // 不计时，每轮都关闭，避免文件句柄和映射累积影响后面的轮次
+                close(loaded)
+            }) { copyName ->
+                val loaded = open(copyName)
+                loaded.warmUp()
+                assertEquals(true, loaded.contains("key_0"))
+                loaded
+            }
+        }
+    }
+
+    @Test
+    fun singleRead() {
+        val store = open("single_read")
+        store.putAll(values(1_000))
+        val ops = 100_000L
+        Bench.measure("$engineName read", ops) {
+            for (i in 0 until ops) {
+                store.getInt("key_${i % 1000}", 0)
+            }
+        }
+        close(store)
+    }
+
+    @Test
+    fun singleReadSameKey() {
+        val store = open("single_read_same")
+        store.put("key", 1)
+        val ops = 100_000L
+        Bench.measure("$engineName read same key", ops) {
+            for (i in 0 until ops) {
+                store.getInt("key", 0)
+            }
+        }
+        close(store)
+    }
+
+    @Test
+    fun singleWrite() {
+        val store = open("single_write")
+        val ops = 10_000L
+        var seed = 0
+        Bench.measure("$engineName write", ops) {
+            for (i in 0 until ops) {
+                store.put("key_${i % 100}", seed++)
+            }
+        }
+        close(store)
+    }
+
+    @Test
+    fun singleWriteAndFlush() {
+        val store = open("single_write_flush")
+        val ops = 200L
+        var seed = 0
+        Bench.measure("$engineName write + blocking flush", ops) {
+            for (i in 0 until ops) {
+                store.put("key_${i % 100}", seed++)
+                store.flush(true)
+            }
+        }
+        close(store)
+    }
+
+    @Test
+    fun bulkWrite() {
+        val store = open("bulk_write")
+        val batch = 1_000
+        var seed = 0
+        Bench.measure("$engineName putAll $batch keys", batch.toLong()) {
+            store.putAll(values(batch, seed++))
+            store.flush(true)
+        }
+        close(store)
+    }
+
+    @Test
+    fun concurrentReadWrite() {
+        val store = open("concurrent")
+        store.putAll(values(1_000))
+        val opsPerThread = 20_000L
+        Bench.measureConcurrent("$engineName 4 readers + 2 writers", 6, opsPerThread) { thread ->
+            if (thread < 4) {
+                for (i in 0 until opsPerThread) {
+                    store.getInt("key_${i % 1000}", 0)
+                }
+            } else {
+                for (i in 0 until opsPerThread) {
+                    store.put("key_${i % 1000}", thread * i.toInt())
+                }
+            }
+        }
+        close(store)
+    }
+
+    private fun values(count: Int, seed: Int = 0): Map<String, Any> {
+        val values = HashMap<String, Any>(count * 2)
+        for (i in 0 until count) {
+            values["key_$i"] = when (i % 4) {
+                0 -> i + seed
+                1 -> (i + seed).toLong()
+                2 -> (i + seed) % 2 == 0
+                else -> "value_${i + seed}"
+            }
+        }
+        return values
+    }
+
+    companion object {
+        private const val COLD_LOAD_ROUNDS = 10
+    }
+}
@@ -0,0 +1,52 @@
+package com.hua.kotlin_tools.bench
+
+import android.content.Context
+import androidx.test.core.app.ApplicationProvider
+import com.hua.kotlin_tools.pref.PrefStore
+import com.hua.kotlin_tools.pref.SharedPrefStore
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+
+/**
+ * [SharedPrefStore]通过Robolectric运行，Robolectric使用的是真实的SharedPreferencesImpl，
+ * 会真正读写xml文件，但绝对数值和真机有差距，主要用于对比不同实现。
+ *
+ * getSharedPreferences对同名实例有缓存，所以冷启动加载是把xml拷贝成新名字再打开。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-18 11:10
+ */
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class SharedPrefStoreBenchmark : PrefStoreBenchmark() {
+
+    private val mContext: Context = ApplicationProvider.getApplicationContext()
+
+    override val engineName = "shared_prefs"
+
+    override fun open(name: String): PrefStore {
+        return SharedPrefStore(mContext.getSharedPreferences(name, Context.MODE_PRIVATE), FLUSH_INTERVAL_MS)
+    }
+
+    override fun close(store: PrefStore) {
+        store.flush(true)
+    }
+
+    override fun copy(from: String, to: String) {
+        file(from).copyTo(file(to), true)
+    }
+
+    override fun delete(name: String) {
+        file(name).delete()
+    }
+
+    private fun file(name: String) = File(File(mContext.applicationInfo.dataDir, "shared_prefs"), "$name.xml")
+
+    companion object {
+        private const val FLUSH_INTERVAL_MS = 1000L
+    }
+}
@@ -0,0 +1,478 @@
+package com.hua.kotlin_tools.pref
+
+import android.content.Context
+import android.preference.PreferenceManager
+import androidx.test.core.app.ApplicationProvider
+import com.hua.kotlin_tools.AppExecutors
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+
+/**
+ * [MmapPrefStore]的崩溃恢复、compact和迁移。
+ *
+ * 通过直接修改文件内容模拟写入中途崩溃，文件格式见[MmapPrefStore]的注释。
+ * 迁移需要SharedPreferences，所以用Robolectric运行。
+ *
+ * @author zhangsh
+ * @version V1.0
+ * @date 2020-03-27 10:30
+ */
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [28])
+class MmapPrefStoreTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val mOpened = ArrayList<MmapPrefStore>()
+
+    @After
+    fun closeAll() {
+        awaitDiskIdle()
+        for (store in mOpened) {
+            try {
+                store.close()
+            } catch (e: Exception) {
+            }
+        }
+    }
+
+    @Test
+    fun reopenKeepsAllTypes() {
+        val file = newFile()
+        val store = open(file)
+        store.putAll(mapOf("s" to "text", "b" to true, "i" to 42, "l" to 1L shl 40, "f" to 1.5f))
+        store.put("removed", "x")
+        store.put("removed", PrefStore.REMOVED)
+        store.close()
+
+        val reopened = open(file)
+        assertEquals("text", reopened.getString("s", null))
+        assertEquals(true, reopened.getBoolean("b", false))
+        assertEquals(42, reopened.getInt("i", 0))
+        assertEquals(1L shl 40, reopened.getLong("l", 0L))
+        assertEquals(1.5f, reopened.getFloat("f", 0f))
+        assertFalse(reopened.contains("removed"))
+    }
+
+    @Test
+    fun corruptedRecordIsTruncated() {
+        val file = newFile()
+        val store = open(file)
+        store.put("k1", 1)
+        store.put("k2", 2)
+        store.close()
+
+        // 第二条记录body中的一个字节被改坏，crc校验失败
+        corrupt(file, HEADER_SIZE + intRecordSize("k1") + RECORD_HEADER_SIZE + 1)
+
+        val reopened = open(file)
+        assertEquals(1, reopened.getInt("k1", 0))
+        assertFalse(reopened.contains("k2"))
+        assertEquals(HEADER_SIZE + intRecordSize("k1"), readHeader(file, OFFSET_END))
+
+        // 截断之后还能继续写
+        reopened.put("k3", 3)
+        reopened.close()
+        val again = open(file)
+        assertEquals(1, again.getInt("k1", 0))
+        assertEquals(3, again.getInt("k3", 0))
+        assertFalse(again.contains("k2"))
+    }
+
+    @Test
+    fun endPastWrittenRecordsIsTruncated() {
+        val file = newFile()
+        val store = open(file)
+        store.put("k1", 1)
+        store.close()
+
+        // header中的end已经更新，但记录没有写完，后面都是0
+        val end = readHeader(file, OFFSET_END)
+        writeHeader(file, OFFSET_END, end + 100)
+
+        val reopened = open(file)
+        assertEquals(1, reopened.getInt("k1", 0))
+        assertEquals(end, readHeader(file, OFFSET_END))
+        reopened.put("k2", 2)
+        reopened.close()
+
+        val again = open(file)
+        assertEquals(1, again.getInt("k1", 0))
+        assertEquals(2, again.getInt("k2", 0))
+    }
+
+    @Test
+    fun uncommittedRecordIsIgnored() {
+        val file = newFile()
+        val store = open(file)
+        store.put("k1", 1)
+        store.put("k2", 2)
+        store.close()
+
+        // 第二条记录写完了，但是崩溃在更新end之前
+        writeHeader(file, OFFSET_END, HEADER_SIZE + intRecordSize("k1"))
+
+        val reopened = open(file)
+        assertEquals(1, reopened.getInt("k1", 0))
+        assertFalse(reopened.contains("k2"))
+    }
+
+    @Test
+    fun invalidMagicResetsFile() {
+        val file = newFile()
+        val store = open(file)
+        store.put("k1", 1)
+        store.close()
+
+        writeHeader(file, 0, 0x12345678)
+
+        val reopened = open(file)
+        assertFalse(reopened.contains("k1"))
+        reopened.put("k2", 2)
+        reopened.close()
+        assertEquals(2, open(file).getInt("k2", 0))
+    }
+
+    @Test
+    fun compactByRename() {
+        verifyCompaction(false)
+        assertFalse(File(folder.root, "store.mmpref.compact").exists())
+    }
+
+    @Test
+    fun compactInPlace() {
+        verifyCompaction(true)
+        assertFalse(File(folder.root, "store.mmpref.journal").exists())
+    }
+
+    @Test
+    fun reopenAfterCrashDuringCompactInPlace() {
+        val expected = newFile("expected.mmpref")
+        val compacted = open(expected)
+        compacted.putAll(mapOf("k1" to "new", "k2" to 2))
+        compacted.close()
+
+        val file = newFile()
+        val store = open(file, true)
+        store.putAll(mapOf("k1" to "old", "k3" to 3))
+        store.close()
+
+        // 旁路文件已经写完，原文件重写到一半
+        writeJournal(file, trimmedImage(expected))
+        writeHeader(file, OFFSET_FLAGS, FLAG_COMPACTING)
+        corrupt(file, HEADER_SIZE + 4)
+
+        val reopened = open(file, true)
+        assertEquals("new", reopened.getString("k1", null))
+        assertEquals(2, reopened.getInt("k2", 0))
+        assertFalse(reopened.contains("k3"))
+        assertEquals(0, readHeader(file, OFFSET_FLAGS))
+        assertFalse(journal(file).exists())
+    }
+
+    @Test
+    fun incompleteJournalKeepsOriginalFile() {
+        val expected = newFile("expected.mmpref")
+        val compacted = open(expected)
+        compacted.putAll(mapOf("k1" to "new", "k2" to 2))
+        compacted.close()
+
+        val file = newFile()
+        val store = open(file, true)
+        store.putAll(mapOf("k1" to "old", "k3" to 3))
+        store.close()
+
+        // 旁路文件没写完就崩溃了，原文件还没有动过
+        val journal = journal(file)
+        writeJournal(file, trimmedImage(expected))
+        journal.writeBytes(journal.readBytes().copyOf(journal.length().toInt() - 3))
+        writeHeader(file, OFFSET_FLAGS, FLAG_COMPACTING)
+
+        val reopened = open(file, true)
+        assertEquals("old", reopened.getString("k1", null))
+        assertEquals(3, reopened.getInt("k3", 0))
+        assertFalse(reopened.contains("k2"))
+        assertEquals(0, readHeader(file, OFFSET_FLAGS))
+        assertFalse(journal(file).exists())
+    }
+
+    @Test
+    fun corruptedJournalIsIgnored() {
+        val expected = newFile("expected.mmpref")
+        val compacted = open(expected)
+        compacted.putAll(mapOf("k1" to "new", "k2" to 2))
+        compacted.close()
+
+        val file = newFile()
+        val store = open(file, true)
+        store.putAll(mapOf("k1" to "old", "k3" to 3))
+        store.close()
+
+        // 长度正确但内容有错，crc校验失败
+        writeJournal(file, trimmedImage(expected))
+        corrupt(journal(file), HEADER_SIZE + RECORD_HEADER_SIZE + 1)
+        writeHeader(file, OFFSET_FLAGS, FLAG_COMPACTING)
+
+        val reopened = open(file, true)
+        assertEquals("old", reopened.getString("k1", null))
+        assertFalse(reopened.contains("k2"))
+        assertEquals(0, readHeader(file, OFFSET_FLAGS))
+    }
+
+    @Test
+    fun writerRecoversBeforeAppending() {
+        val expected = newFile("expected.mmpref")
+        val compacted = open(expected)
+        compacted.putAll(mapOf("k1" to "new", "k2" to 2))
+        compacted.close()
+
+        val file = newFile()
+        val store = open(file, true)
+        store.putAll(mapOf("k1" to "old", "k3" to 3))
+
+        // 存活的进程打开着文件时，另一个进程原地compact到一半崩溃了
+        writeJournal(file, trimmedImage(expected))
+        writeHeader(file, OFFSET_FLAGS, FLAG_COMPACTING)
+        corrupt(file, HEADER_SIZE + 4)
+
+        store.put("k4", 4)
+        assertEquals("new", store.getString("k1", null))
+        assertEquals(2, store.getInt("k2", 0))
+        assertFalse(store.contains("k3"))
+        assertEquals(4, store.getInt("k4", 0))
+        assertEquals(0, readHeader(file, OFFSET_FLAGS))
+        assertFalse(journal(file).exists())
+        store.close()
+
+        // 新写入的记录没有被旁路文件覆盖
+        val reopened = open(file, true)
+        assertEquals("new", reopened.getString("k1", null))
+        assertEquals(4, reopened.getInt("k4", 0))
+    }
+
+    @Test
+    fun readerRecoversBeforeSync() {
+        val expected = newFile("expected.mmpref")
+        val compacted = open(expected)
+        compacted.putAll(mapOf("k1" to "new", "k2" to 2))
+        compacted.close()
+
+        val file = newFile()
+        val store = open(file, true)
+        store.putAll(mapOf("k1" to "old", "k3" to 3))
+
+        writeJournal(file, trimmedImage(expected))
+        writeHeader(file, OFFSET_FLAGS, FLAG_COMPACTING)
+        // 崩溃前已经写了新的header，sequence变化让读操作去同步
+        writeHeader(file, OFFSET_SEQUENCE, readHeader(file, OFFSET_SEQUENCE) + 1)
+
+        assertEquals("new", store.getString("k1", null))
+        assertEquals(2, store.getInt("k2", 0))
+        assertFalse(store.contains("k3"))
+        assertEquals(0, readHeader(file, OFFSET_FLAGS))
+    }
+
+    @Test
+    fun sameFileOpenedTwiceSharesOneStore() {
+        val file = newFile()
+        val first = open(file, true)
+        // 不同的File对象指向同一个文件
+        val second = open(File(file.parentFile, "./" + file.name), true)
+        assertTrue(first === second)
+
+        // 只有一个FileChannel，加文件锁不会OverlappingFileLockException
+        first.put("a", 1)
+        second.put("b", 2)
+        assertEquals(2, first.getInt("b", 0))
+
+        try {
+            MmapPrefStore.open(file, false)
+            fail("multiProcess mismatch should throw")
+        } catch (e: IllegalStateException) {
+        }
+
+        first.close()
+        val reopened = open(file, true)
+        assertFalse(reopened === first)
+        assertEquals(1, reopened.getInt("a", 0))
+        assertEquals(2, reopened.getInt("b", 0))
+    }
+
+    @Test
+    fun concurrentOpenDefaultSharesOneStore() {
+        val context: Context = ApplicationProvider.getApplicationContext()
+        val stores = arrayOfNulls<MmapPrefStore>(4)
+        val threads = Array(stores.size) { i ->
+            Thread { stores[i] = MmapPrefStore.openDefault(context, true) }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+        val store = stores[0]!!
+        mOpened.add(store)
+        for (other in stores) {
+            assertTrue(store === other)
+        }
+        store.put("k", 1)
+        assertEquals(1, store.getInt("k", 0))
+    }
+
+    @Test
+    fun migrateFromSharedPreferences() {
+        val context: Context = ApplicationProvider.getApplicationContext()
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString("s", "text")
+                .putInt("i", 7)
+                .putLong("l", 8L)
+                .putBoolean("b", true)
+                .putFloat("f", 0.5f)
+                .putStringSet("set", setOf("a"))
+                .commit()
+
+        val store = MmapPrefStore.openDefault(context)
+        mOpened.add(store)
+        assertEquals("text", store.getString("s", null))
+        assertEquals(7, store.getInt("i", 0))
+        assertEquals(8L, store.getLong("l", 0L))
+        assertEquals(true, store.getBoolean("b", false))
+        assertEquals(0.5f, store.getFloat("f", 0f))
+        // 不支持的类型跳过
+        assertFalse(store.contains("set"))
+        assertFalse(File(context.filesDir, "prefs/default.mmpref.migrate").exists())
+        store.close()
+
+        // 已经迁移过，不再读SharedPreferences
+        PreferenceManager.getDefaultSharedPreferences(context).edit().putInt("i", 100).commit()
+        val reopened = MmapPrefStore.openDefault(context)
+        mOpened.add(reopened)
+        assertEquals(7, reopened.getInt("i", 0))
+    }
+
+    @Test
+    fun interruptedMigrationIsRedone() {
+        val context: Context = ApplicationProvider.getApplicationContext()
+        PreferenceManager.getDefaultSharedPreferences(context).edit().putInt("i", 7).commit()
+
+        // 上次迁移写了一半临时文件就崩溃了
+        val tmp = File(context.filesDir, "prefs/default.mmpref.migrate")
+        tmp.parentFile?.mkdirs()
+        tmp.writeBytes(ByteArray(10))
+
+        val store = MmapPrefStore.openDefault(context)
+        mOpened.add(store)
+        assertEquals(7, store.getInt("i", 0))
+        assertFalse(tmp.exists())
+    }
+
+    private fun verifyCompaction(multiProcess: Boolean) {
+        val file = newFile()
+        val store = open(file, multiProcess)
+        val value = "v".repeat(1024)
+        store.put("keep", 1)
+        for (i in 0 until 40) {
+            store.put("big", value + i)
+        }
+        val deadline = System.currentTimeMillis() + 10_000
+        while (readHeader(file, OFFSET_GENERATION) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        awaitDiskIdle()
+
+        assertTrue(readHeader(file, OFFSET_GENERATION) > 0)
+        assertEquals(1, store.getInt("keep", 0))
+        assertEquals(value + 39, store.getString("big", null))
+        store.put("after", 2)
+        store.close()
+
+        val reopened = open(file, multiProcess)
+        assertEquals(1, reopened.getInt("keep", 0))
+        assertEquals(value + 39, reopened.getString("big", null))
+        assertEquals(2, reopened.getInt("after", 0))
+        assertNull(reopened.getString("missing", null))
+    }
+
+    private fun newFile(name: String = "store.mmpref") = File(folder.root, name)
+
+    private fun open(file: File, multiProcess: Boolean = false): MmapPrefStore {
+        return MmapPrefStore.open(file, multiProcess).also { mOpened.add(it) }
+    }
+
+    private fun journal(file: File) = File(file.path + ".journal")
+
+    /**
+     * 和compact时一样，在末尾加上整个内容的crc
+     */
+    private fun writeJournal(file: File, image: ByteArray) {
+        val crc = CRC32()
+        crc.update(image)
+        journal(file).writeBytes(image + ByteBuffer.allocate(4).putInt(crc.value.toInt()).array())
+    }
+
+    /**
+     * 文件映射时会补齐到初始大小，这里只取end之前的部分，和compact时写的旁路文件一样
+     */
+    private fun trimmedImage(file: File): ByteArray {
+        return file.readBytes().copyOf(readHeader(file, OFFSET_END))
+    }
+
+    private fun intRecordSize(key: String) = RECORD_HEADER_SIZE + 1 + 2 + key.length + 4
+
+    private fun corrupt(file: File, position: Int) {
+        RandomAccessFile(file, "rw").use {
+            it.seek(position.toLong())
+            val b = it.read()
+            it.seek(position.toLong())
+            it.write(b xor 0xff)
+        }
+    }
+
+    private fun readHeader(file: File, offset: Int): Int {
+        RandomAccessFile(file, "r").use {
+            it.seek(offset.toLong())
+            return it.readInt()
+        }
+    }
+
+    private fun writeHeader(file: File, offset: Int, value: Int) {
+        RandomAccessFile(file, "rw").use {
+            it.seek(offset.toLong())
+            it.writeInt(value)
+        }
+    }
+
+    /**
+     * compact在[AppExecutors.disk]中执行
+     */
+    private fun awaitDiskIdle() {
+        val deadline = System.currentTimeMillis() + 10_000
+        val disk = AppExecutors.disk
+        while ((disk.activeCount > 0 || disk.queue.isNotEmpty()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+
+    companion object {
+        private const val OFFSET_END = 8
+        private const val OFFSET_SEQUENCE = 12
+        private const val OFFSET_GENERATION = 16
+        private const val OFFSET_FLAGS = 20
+        private const val HEADER_SIZE = 32
+        private const val RECORD_HEADER_SIZE = 8
+        private const val FLAG_COMPACTING = 1
+    }
+}
@@ -0,0 +1,96 @@
+package com.hua.waveimageview;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * 可以被BitmapFactory.Options.inBitmap复用的bitmap。
+ * API 19以下inBitmap要求尺寸完全一致，命中率很低，所以只在API 19及以上启用。
+ *
+ * @author hua
+ * @version 2020/3/26 10:40
+ */
+
+final class BitmapPool {
+
+    private final int mMaxBytes;
+
+    private int mBytes;
+
+    /**
+     * 越靠后越新，超出容量时从头部淘汰
+     */
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<>();
+
+    BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * 放入一个不再被使用的bitmap，不能复用的直接丢弃
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    synchronized void put(Bitmap bitmap) {
+        if (!isSupported() || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (size > mMaxBytes) {
+            return;
+        }
+        while (mBytes + size > mMaxBytes && !mBitmaps.isEmpty()) {
+            Bitmap old = mBitmaps.removeFirst();
+            mBytes -= old.getAllocationByteCount();
+            old.recycle();
+        }
+        mBitmaps.addLast(bitmap);
+        mBytes += size;
+    }
+
+    /**
+     * 取出能容纳width * height的最小的bitmap，没有时返回null
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!isSupported()) {
+            return null;
+        }
+        int required = width * height * bytesPerPixel(config);
+        Bitmap best = null;
+        for (Bitmap bitmap : mBitmaps) {
+            int size = bitmap.getAllocationByteCount();
+            if (size >= required && (best == null || size < best.getAllocationByteCount())) {
+                best = bitmap;
+            }
+        }
+        if (best != null) {
+            Iterator<Bitmap> iterator = mBitmaps.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() == best) {
+                    iterator.remove();
+                    break;
+                }
+            }
+            mBytes -= best.getAllocationByteCount();
+        }
+        return best;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
@@ -0,0 +1,325 @@
+package com.hua.waveimageview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WaveImageView的图片加载：在子线程按控件尺寸采样解码，结果放在所有实例共享的LRU缓存中。
+ * <p>
+ * 缓存中的bitmap带引用计数，被淘汰并且没有控件在显示时才放进{@link BitmapPool}，
+ * 之后解码时通过inBitmap复用，减少大块内存的分配和GC。
+ *
+ * @author hua
+ * @version 2020/3/26 10:20
+ */
+
+final class WaveImageLoader {
+
+    private static final String TAG = "WaveImageLoader";
+
+    interface Callback {
+        /**
+         * 在主线程回调
+         *
+         * @param request {@link #load}返回的请求，命中缓存时回调早于load返回
+         * @param bitmap  解码失败时为null
+         */
+        void onLoaded(Request request, Bitmap bitmap);
+    }
+
+    /**
+     * 图片来源，资源id、文件或者Uri
+     */
+    static final class Source {
+        private final int mResId;
+        private final File mFile;
+        private final Uri mUri;
+        private final String mKey;
+
+        private Source(int resId, File file, Uri uri, String key) {
+            mResId = resId;
+            mFile = file;
+            mUri = uri;
+            mKey = key;
+        }
+
+        static Source ofResource(Context context, int resId) {
+            return new Source(resId, null, null, "res:" + context.getPackageName() + "/" + resId);
+        }
+
+        static Source ofFile(File file) {
+            // 文件内容可能被替换，把修改时间也作为key的一部分
+            return new Source(0, file, null, "file:" + file.getAbsolutePath() + "#" + file.lastModified());
+        }
+
+        static Source ofUri(Uri uri) {
+            return new Source(0, null, uri, "uri:" + uri);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Source && ((Source) o).mKey.equals(mKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return mKey.hashCode();
+        }
+
+        private Bitmap decode(Context context, BitmapFactory.Options options) throws IOException {
+            if (mFile != null) {
+                return BitmapFactory.decodeFile(mFile.getAbsolutePath(), options);
+            }
+            if (mUri != null) {
+                InputStream input = context.getContentResolver().openInputStream(mUri);
+                if (input == null) {
+                    return null;
+                }
+                try {
+                    return BitmapFactory.decodeStream(input, null, options);
+                } finally {
+                    input.close();
+                }
+            }
+            return BitmapFactory.decodeResource(context.getResources(), mResId, options);
+        }
+    }
+
+    /**
+     * 一次加载请求，不再使用时必须调用{@link #release(Request)}
+     */
+    static final class Request {
+        private final String mKey;
+        private volatile boolean mCancelled;
+        private Entry mEntry;
+
+        private Request(String key) {
+            mKey = key;
+        }
+    }
+
+    private static final class Entry {
+        final Bitmap bitmap;
+        int refCount;
+        boolean cached;
+
+        Entry(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+
+    private static final Object sLock = new Object();
+
+    private static final int MAX_MEMORY = (int) Math.min(Runtime.getRuntime().maxMemory(), Integer.MAX_VALUE);
+
+    private static final BitmapPool sPool = new BitmapPool(MAX_MEMORY / 16);
+
+    private static final LruCache<String, Entry> sCache = new LruCache<String, Entry>(MAX_MEMORY / 8) {
+        @Override
+        protected int sizeOf(String key, Entry value) {
+            // 通过inBitmap复用时实际占用的内存可能比图片本身大
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                return value.bitmap.getAllocationByteCount();
+            }
+            return value.bitmap.getByteCount();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+            // 调用方都持有sLock
+            oldValue.cached = false;
+            if (oldValue.refCount == 0) {
+                sPool.put(oldValue.bitmap);
+            }
+        }
+    };
+
+    private static final ExecutorService sExecutor = new ThreadPoolExecutor(2, 2,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "wave-image-decode");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        ((ThreadPoolExecutor) sExecutor).allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private WaveImageLoader() {
+    }
+
+    /**
+     * 加载[source]并采样到不小于width * height，命中缓存时在当前线程马上回调
+     */
+    static Request load(Context context, final Source source, final int width, final int height,
+                        final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        final Request request = new Request(source.mKey + "@" + width + "x" + height);
+        Entry cached = acquire(request.mKey);
+        if (cached != null) {
+            request.mEntry = cached;
+            callback.onLoaded(request, cached.bitmap);
+            return request;
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request.mCancelled) {
+                    return;
+                }
+                Entry entry = acquire(request.mKey);
+                if (entry == null) {
+                    Bitmap bitmap = decode(appContext, source, width, height);
+                    if (bitmap != null) {
+                        entry = putAndAcquire(request.mKey, bitmap);
+                    }
+                }
+                final Entry result = entry;
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request.mCancelled) {
+                            release(result);
+                            return;
+                        }
+                        request.mEntry = result;
+                        callback.onLoaded(request, result == null ? null : result.bitmap);
+                    }
+                });
+            }
+        });
+        return request;
+    }
+
+    /**
+     * 取消请求，已经加载的bitmap不能再被绘制。在主线程调用
+     */
+    static void release(Request request) {
+        if (request == null) {
+            return;
+        }
+        request.mCancelled = true;
+        release(request.mEntry);
+        request.mEntry = null;
+    }
+
+    private static Entry acquire(String key) {
+        synchronized (sLock) {
+            Entry entry = sCache.get(key);
+            if (entry != null) {
+                entry.refCount++;
+            }
+            return entry;
+        }
+    }
+
+    private static Entry putAndAcquire(String key, Bitmap bitmap) {
+        synchronized (sLock) {
+            Entry existing = sCache.get(key);
+            if (existing != null) {
+                // 同一张图被并发解码了两次
+                sPool.put(bitmap);
+                existing.refCount++;
+                return existing;
+            }
+            Entry entry = new Entry(bitmap);
+            entry.refCount = 1;
+            entry.cached = true;
+            sCache.put(key, entry);
+            return entry;
+        }
+    }
+
+    private static void release(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        synchronized (sLock) {
+            entry.refCount--;
+            if (entry.refCount == 0 && !entry.cached) {
+                sPool.put(entry.bitmap);
+            }
+        }
+    }
+
+    private static Bitmap decode(Context context, Source source, int width, int height) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            options.inScaled = false;
+            source.decode(context, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            int sampleSize = computeSampleSize(options.outWidth, options.outHeight, width, height);
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            if (BitmapPool.isSupported()) {
+                options.inMutable = true;
+                options.inBitmap = sPool.get(divideCeil(options.outWidth, sampleSize),
+                        divideCeil(options.outHeight, sampleSize), Bitmap.Config.ARGB_8888);
+            }
+            try {
+                return source.decode(context, options);
+            } catch (IllegalArgumentException e) {
+                // inBitmap不满足条件
+                if (options.inBitmap == null) {
+                    throw e;
+                }
+                options.inBitmap = null;
+                return source.decode(context, options);
+            }
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            Log.e(TAG, "decode " + source.mKey + " failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * 取2的幂，保证采样后仍然不小于目标尺寸
+     */
+    static int computeSampleSize(int srcWidth, int srcHeight, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return sampleSize;
+        }
+        while (srcWidth / (sampleSize * 2) >= reqWidth && srcHeight / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static int divideCeil(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
@@ -1,22 +1,33 @@
 package com.hua.waveimageview;
 
 import android.content.Context;
+import android.annotation.TargetApi;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Shader;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.RecordingCanvas;
+import android.graphics.Rect;
+import android.graphics.RenderNode;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import androidx.core.view.ViewCompat;
+import android.net.Uri;
+import android.os.Build;
+import androidx.annotation.DrawableRes;
 import android.util.AttributeSet;
-import android.util.DisplayMetrics;
+import android.util.TypedValue;
 import android.view.View;
 import android.view.ViewGroup;
-import android.view.WindowManager;
+import android.view.ViewTreeObserver;
+
+import java.io.File;
 
 
 /**
@@ -39,13 +50,39 @@ public class WaveImageView extends View {
     private static final int DEF_SECOND_CYCLE_MULTIPLE = 1;
     private static final int OFFSET_MULTIPLE = 1;
 
+    /**
+     * wave_speed是按60帧每秒时每帧移动的像素定义的，换算成px/s时乘以这个值
+     */
+    private static final int SPEED_REFERENCE_FRAME_RATE = 60;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * 一个周期的最小宽度，单位dp，控件太窄时减少周期数，path的段数随之减少
+     */
+    private static final int MIN_PERIOD_DP = 24;
+
+    /**
+     * 宽度小于这个值（dp）的控件按低细节绘制，不开抗锯齿
+     */
+    private static final int LOW_DETAIL_WIDTH_DP = 120;
+
+    /**
+     * 每帧重新构建path并绘制
+     */
+    public static final int RENDER_MODE_PATH = 0;
+
+    /**
+     * 尺寸变化时把一个周期的波浪线绘制到bitmap上，每帧只平移shader
+     */
+    public static final int RENDER_MODE_TILE = 1;
+
     private Paint mFirstPathPaint;
     private Paint mSecondPathPaint;
 
     private Path mFirstPath;
     private Path mSecondPath;
     private Context mContext;
-    private int mScreenWidth;
 
     /**
      * 第一条波浪线的左边偏移值，是path的X轴方向的起点
@@ -57,7 +94,17 @@ public class WaveImageView extends View {
      */
     private int mSecondLeftOffset;
 
-    private LeftOffsetRunnable mLeftOffsetRunnable;
+    /**
+     * mFirstLeftOffset的精确值，按时间累加，取整后才用于绘制
+     */
+    private float mFirstOffsetExact;
+
+    private WaveTicker.Client mTickerClient;
+
+    /**
+     * 是否按{@link WaveTicker}的共享时钟计算偏移，速度和周期相同的实例波形同步
+     */
+    private boolean mPhaseSync;
     private int mWaveHeight;
 
     /**
@@ -71,7 +118,10 @@ public class WaveImageView extends View {
      */
     private int mWaveSecondColor;
 
-    private int mWaveSpeed;
+    /**
+     * 波浪线移动速度，单位px/s
+     */
+    private float mWaveSpeed;
     private int mWidth;
     private int mHeight;
 
@@ -79,6 +129,39 @@ public class WaveImageView extends View {
 
     private Drawable mSrcDrawable;
 
+    /**
+     * 通过{@link #setImageResource(int)}等方法设置的图片来源，按控件尺寸在子线程解码
+     */
+    private WaveImageLoader.Source mImageSource;
+
+    /**
+     * 正在显示的图片对应的请求，持有缓存中bitmap的引用
+     */
+    private WaveImageLoader.Request mDisplayedRequest;
+
+    /**
+     * 正在加载的请求，加载完成后替换{@link #mDisplayedRequest}
+     */
+    private WaveImageLoader.Request mPendingRequest;
+
+    private int mRequestedWidth;
+    private int mRequestedHeight;
+
+    private final WaveImageLoader.Callback mImageCallback = new WaveImageLoader.Callback() {
+        @Override
+        public void onLoaded(WaveImageLoader.Request request, Bitmap bitmap) {
+            WaveImageLoader.release(mDisplayedRequest);
+            mDisplayedRequest = request;
+            if (mPendingRequest == request) {
+                mPendingRequest = null;
+            }
+            mSrcDrawable = bitmap == null ? null : new BitmapDrawable(mContext.getResources(), bitmap);
+            onImageChanged();
+            updateAnimation();
+            invalidate();
+        }
+    };
+
     /**
      * 1/4周期的宽度值
      */
@@ -86,6 +169,78 @@ public class WaveImageView extends View {
 
     private int mEmptyColor;
 
+    private int mRenderMode = RENDER_MODE_TILE;
+
+    /**
+     * 一个周期的波浪线，宽度是4 * mDeltaX，高度是mWaveHeight，只有alpha通道，颜色由paint决定
+     */
+    private Bitmap mWaveTile;
+
+    /**
+     * 当前控件是否按低细节绘制，见{@link #LOW_DETAIL_WIDTH_DP}
+     */
+    private boolean mLowDetail;
+
+    /**
+     * mWaveTile绘制时是否是低细节，变化后重新绘制
+     */
+    private boolean mWaveTileLowDetail;
+
+    private Paint mFirstTilePaint;
+    private Paint mSecondTilePaint;
+    private BitmapShader mFirstShader;
+    private BitmapShader mSecondShader;
+    private final Matrix mShaderMatrix = new Matrix();
+
+    /**
+     * API 29及以上把图片和波浪线分别放在自己的RenderNode中，为null时直接画在控件的canvas上
+     */
+    private WaveLayers mWaveLayers;
+
+    /**
+     * 调用方是否希望播放动画，见{@link #start()}、{@link #stop()}
+     */
+    private boolean mStarted = true;
+
+    /**
+     * 动画是否真正在执行，只有可见并且有图片时才执行
+     */
+    private boolean mRunning;
+
+    private boolean mAttached;
+
+    private boolean mPowerSaveMode;
+
+    /**
+     * 最大帧率，0表示跟随屏幕刷新率
+     */
+    private int mMaxFrameRate;
+
+    /**
+     * 上一次更新偏移时的帧时间，0表示动画刚开始
+     */
+    private long mLastFrameTimeNanos;
+
+    private final Rect mVisibleRect = new Rect();
+
+    private final ViewTreeObserver.OnScrollChangedListener mScrollChangedListener =
+            new ViewTreeObserver.OnScrollChangedListener() {
+                @Override
+                public void onScrollChanged() {
+                    updateAnimation();
+                }
+            };
+
+    private final ViewTreeObserver.OnGlobalLayoutListener mGlobalLayoutListener =
+            new ViewTreeObserver.OnGlobalLayoutListener() {
+                @Override
+                public void onGlobalLayout() {
+                    updateAnimation();
+                }
+            };
+
+    private WaveTicker.PowerSaveListener mPowerSaveListener;
+
     public WaveImageView(Context context) {
         this(context, null);
     }
@@ -101,8 +256,6 @@ public class WaveImageView extends View {
 
     private void init(Context context, AttributeSet attrs, int defStyle) {
         mContext = context;
-        mScreenWidth = getScreenWidth(mContext);
-
         obtainAttrs(attrs, defStyle);
 
         mFirstPathPaint = new Paint();
@@ -117,13 +270,28 @@ public class WaveImageView extends View {
         mSecondPathPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_OVER));
         mSecondPathPaint.setColor(mWaveSecondColor);
 
-        mFirstLeftOffset = -mScreenWidth;
-        mSecondLeftOffset = mFirstLeftOffset - mDeltaX * OFFSET_MULTIPLE;
-        mLeftOffsetRunnable = new LeftOffsetRunnable();
+        mTickerClient = new WaveTicker.Client() {
+            @Override
+            public void onFrame(long frameTimeNanos) {
+                WaveImageView.this.onFrame(frameTimeNanos);
+            }
+        };
+        mPowerSaveListener = new WaveTicker.PowerSaveListener() {
+            @Override
+            public void onPowerSaveModeChanged(boolean powerSaveMode) {
+                mPowerSaveMode = powerSaveMode;
+                updateAnimation();
+            }
+        };
         mFirstPath = new Path();
         mSecondPath = new Path();
 
-        ViewCompat.postOnAnimation(this, mLeftOffsetRunnable);
+        mFirstTilePaint = new Paint();
+        mSecondTilePaint = new Paint();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            mWaveLayers = new WaveLayers();
+        }
     }
 
     private void obtainAttrs(AttributeSet attrs, int defStyle) {
@@ -134,10 +302,20 @@ public class WaveImageView extends View {
         int multiple = array.getInt(R.styleable.WaveImageView_wave_second_cycle_multiple, DEF_SECOND_CYCLE_MULTIPLE);
         mSecondCycleSum = mFirstCycleSum * multiple;
         mWaveSecondColor = array.getColor(R.styleable.WaveImageView_wave_second_color, DEF_WAVE_SECOND_COLOR);
-        mWaveSpeed = array.getDimensionPixelSize(R.styleable.WaveImageView_wave_speed, DEF_WAVE_SPEED);
-        mDeltaX = mScreenWidth / (mFirstCycleSum * 4);
+        mWaveSpeed = array.getDimensionPixelSize(R.styleable.WaveImageView_wave_speed, DEF_WAVE_SPEED)
+                * SPEED_REFERENCE_FRAME_RATE;
         mEmptyColor = array.getColor(R.styleable.WaveImageView_wave_empty_color, DEF_WAVE_EMPTY_COLOR);
-        mSrcDrawable = array.getDrawable(R.styleable.WaveImageView_wave_image_src);
+        if (isBitmapResource(array, R.styleable.WaveImageView_wave_image_src)) {
+            // 位图资源按控件尺寸在子线程解码，其他类型（颜色、shape等）照旧
+            mImageSource = WaveImageLoader.Source.ofResource(mContext,
+                    array.getResourceId(R.styleable.WaveImageView_wave_image_src, 0));
+        } else {
+            mSrcDrawable = array.getDrawable(R.styleable.WaveImageView_wave_image_src);
+        }
+        mRenderMode = array.getInt(R.styleable.WaveImageView_wave_render_mode, RENDER_MODE_TILE);
+        mStarted = array.getBoolean(R.styleable.WaveImageView_wave_auto_start, true);
+        mMaxFrameRate = Math.max(0, array.getInt(R.styleable.WaveImageView_wave_max_frame_rate, 0));
+        mPhaseSync = array.getBoolean(R.styleable.WaveImageView_wave_phase_sync, false);
         array.recycle();
     }
 
@@ -153,29 +331,190 @@ public class WaveImageView extends View {
                 }
             }
         }
+        mAttached = true;
+        requestImage();
+        ViewTreeObserver observer = getViewTreeObserver();
+        observer.addOnScrollChangedListener(mScrollChangedListener);
+        observer.addOnGlobalLayoutListener(mGlobalLayoutListener);
+        mPowerSaveMode = WaveTicker.getInstance().addPowerSaveListener(mContext, mPowerSaveListener);
+        updateAnimation();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mAttached = false;
+        ViewTreeObserver observer = getViewTreeObserver();
+        observer.removeOnScrollChangedListener(mScrollChangedListener);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            observer.removeOnGlobalLayoutListener(mGlobalLayoutListener);
+        } else {
+            observer.removeGlobalOnLayoutListener(mGlobalLayoutListener);
+        }
+        WaveTicker.getInstance().removePowerSaveListener(mPowerSaveListener);
+        mPowerSaveMode = false;
+        cancelPendingRequest();
+        updateAnimation();
+        releaseWaveTile();
+        if (mWaveLayers != null) {
+            mWaveLayers.release();
+        }
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateAnimation();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateAnimation();
+    }
+
+    @Override
+    public void onWindowFocusChanged(boolean hasWindowFocus) {
+        super.onWindowFocusChanged(hasWindowFocus);
+        updateAnimation();
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
 
         if (mSrcDrawable != null) {
-            //画图片
-            mSrcDrawable.setBounds(0, 0, mWidth, mHeight);
-            mSrcDrawable.draw(canvas);
+            if (mWaveLayers != null && mWaveLayers.isSupported(canvas)) {
+                //图片只在变化后重新录制，波浪线只录制底部的区域
+                mWaveLayers.draw(canvas);
+            } else {
+                //画图片
+                drawImage(canvas);
+                //画波浪线
+                drawWave(canvas);
+            }
+        }
+
+    }
+
+    private void drawImage(Canvas canvas) {
+        mSrcDrawable.setBounds(0, 0, mWidth, mHeight);
+        mSrcDrawable.draw(canvas);
+    }
+
+    /**
+     * 图片或尺寸变化后调用，下次绘制时重新录制图片
+     */
+    private void onImageChanged() {
+        if (mWaveLayers != null) {
+            mWaveLayers.release();
+        }
+    }
 
-            //画波浪线
-            drawWave(canvas);
+    /**
+     * 动画每帧只有底部mWaveHeight高的区域变化。
+     * 软件绘制时只重绘这个区域，图片的绘制也会被裁剪到这个区域；
+     * 硬件加速时这个区域会被忽略，控件的display list每帧都会重新录制，
+     * 由{@link WaveLayers}保证图片不会每帧重新录制和光栅化。
+     */
+    private void invalidateWave() {
+        invalidate(0, Math.max(0, mHeight - mWaveHeight), mWidth, mHeight);
+    }
+
+    private void drawWave(Canvas canvas) {
+        if (mDeltaX <= 0) {
+            return;
+        }
+        if (mRenderMode == RENDER_MODE_TILE && ensureWaveTile()) {
+            drawWaveTile(canvas);
+        } else {
+            drawWavePath(canvas);
         }
+    }
 
+    /**
+     * 波浪线是周期性的，两条波浪线形状相同，只是起点不同，所以共用一个周期的tile，
+     * 通过shader在X方向重复。Offset变化时只需要平移shader，不需要构建path。
+     */
+    private void drawWaveTile(Canvas canvas) {
+        final int top = mHeight - mWaveHeight;
+
+        mShaderMatrix.setTranslate(mSecondLeftOffset, top);
+        mSecondShader.setLocalMatrix(mShaderMatrix);
+        canvas.drawRect(0, top, mWidth, mHeight, mSecondTilePaint);
+
+        mShaderMatrix.setTranslate(mFirstLeftOffset, top);
+        mFirstShader.setLocalMatrix(mShaderMatrix);
+        mFirstTilePaint.setColor(mEmptyColor);
+        canvas.drawRect(0, top, mWidth, mHeight, mFirstTilePaint);
+    }
+
+    /**
+     * tile的尺寸只和mDeltaX、mWaveHeight有关，尺寸不对时重新绘制
+     *
+     * @return 无法创建tile时返回false，退回到path模式
+     */
+    private boolean ensureWaveTile() {
+        final int period = mDeltaX * 4;
+        if (period <= 0 || mWaveHeight <= 0) {
+            return false;
+        }
+        if (mWaveTile != null && mWaveTile.getWidth() == period && mWaveTile.getHeight() == mWaveHeight
+                && mWaveTileLowDetail == mLowDetail) {
+            return true;
+        }
+        releaseWaveTile();
+
+        Bitmap tile;
+        try {
+            tile = Bitmap.createBitmap(period, mWaveHeight, Bitmap.Config.ALPHA_8);
+        } catch (OutOfMemoryError e) {
+            return false;
+        }
+        // 从-period画到2 * period，保证tile左右边缘的抗锯齿是连续的。低细节时和path模式一样不开抗锯齿
+        final int middle = mWaveHeight / 2;
+        Path path = new Path();
+        path.moveTo(-period, mWaveHeight);
+        path.lineTo(-period, middle);
+        int i, j;
+        for (i = 1, j = 0; i < 12; i += 2, j++) {
+            int height = j % 2 == 0 ? mWaveHeight : 0;
+            path.quadTo(-period + mDeltaX * i, height, -period + mDeltaX * (i + 1), middle);
+        }
+        path.lineTo(period * 2, mWaveHeight);
+        path.close();
+        Paint paint = new Paint(mLowDetail ? 0 : Paint.ANTI_ALIAS_FLAG);
+        paint.setStyle(Paint.Style.FILL);
+        new Canvas(tile).drawPath(path, paint);
+        mWaveTile = tile;
+        mWaveTileLowDetail = mLowDetail;
+
+        mFirstShader = new BitmapShader(tile, Shader.TileMode.REPEAT, Shader.TileMode.CLAMP);
+        mFirstTilePaint.setShader(mFirstShader);
+        mFirstTilePaint.setColor(mEmptyColor);
+        mSecondShader = new BitmapShader(tile, Shader.TileMode.REPEAT, Shader.TileMode.CLAMP);
+        mSecondTilePaint.setShader(mSecondShader);
+        mSecondTilePaint.setColor(mWaveSecondColor);
+        return true;
+    }
+
+    private void releaseWaveTile() {
+        mFirstTilePaint.setShader(null);
+        mSecondTilePaint.setShader(null);
+        mFirstShader = null;
+        mSecondShader = null;
+        if (mWaveTile != null) {
+            mWaveTile.recycle();
+            mWaveTile = null;
+        }
     }
 
     /**
      * 波浪线绘制思路：
-     * 一共绘制2 * screenWidth长度的波浪线，根据Offset决定其起点
-     * Offset的取值范围是[-screenWidth，0]，Offset循环逐渐递增，
+     * 一共绘制约2 * 控件宽度长度的波浪线，根据Offset决定其起点
+     * Offset的取值范围是[-span，0)，span是不小于控件宽度的整数个周期，Offset循环逐渐递增，
      * 由此产生波浪线效果。
      */
-    private void drawWave(Canvas canvas) {
+    private void drawWavePath(Canvas canvas) {
         mFirstPath.reset();
         mSecondPath.reset();
 
@@ -187,8 +526,8 @@ public class WaveImageView extends View {
         //第一条波浪线的path
         mFirstPath.moveTo(mFirstLeftOffset, 0);
         mFirstPath.lineTo(mFirstLeftOffset, middleHeight);
-        //波浪线长度要确保大于屏幕宽度
-        int count = (mScreenWidth - mFirstLeftOffset) / mDeltaX + 1;
+        //波浪线长度要确保大于控件宽度
+        int count = (mWidth - mFirstLeftOffset) / mDeltaX + 1;
         for (i = 1, j = 0; i <= count; i += 2, j++) {
             int height = j % 2 == 0 ? maxHeight : minHeight;
             mFirstPath.quadTo(mFirstLeftOffset + mDeltaX * i, height,
@@ -201,7 +540,7 @@ public class WaveImageView extends View {
         //第二条波浪线的path
         mSecondPath.moveTo(mSecondLeftOffset, 0);
         mSecondPath.lineTo(mSecondLeftOffset, middleHeight);
-        int count2 = (mScreenWidth - mSecondLeftOffset) / mDeltaX + 1;
+        int count2 = (mWidth - mSecondLeftOffset) / mDeltaX + 1;
         for (i = 1, j = 0; i <= count2; i += 2, j++) {
             int height = j % 2 == 0 ? maxHeight : minHeight;
             mSecondPath.quadTo(mSecondLeftOffset + mDeltaX * i, height,
@@ -222,16 +561,124 @@ public class WaveImageView extends View {
         super.onSizeChanged(w, h, oldw, oldh);
         mWidth = w;
         mHeight = h;
+        updateGeometry();
+        onImageChanged();
+        requestImage();
+    }
+
+    /**
+     * 按控件的实际宽度计算波浪线的几何参数。
+     * 窄的控件（缩略图、列表项）周期数受{@link #MIN_PERIOD_DP}限制，并且不开抗锯齿，
+     * 每帧的开销和控件宽度成正比，而不是和屏幕宽度成正比。
+     */
+    private void updateGeometry() {
+        if (mWidth <= 0) {
+            mDeltaX = 0;
+            return;
+        }
+        float density = getResources().getDisplayMetrics().density;
+        int maxCycleSum = Math.max(1, (int) (mWidth / (MIN_PERIOD_DP * density)));
+        int cycleSum = Math.min(mFirstCycleSum, maxCycleSum);
+        mDeltaX = Math.max(1, mWidth / (cycleSum * 4));
+
+        mLowDetail = mWidth < LOW_DETAIL_WIDTH_DP * density;
+        mFirstPathPaint.setAntiAlias(!mLowDetail);
+        mSecondPathPaint.setAntiAlias(!mLowDetail);
+
+        mFirstOffsetExact = -getWaveSpan();
+        mFirstLeftOffset = (int) mFirstOffsetExact;
+        mSecondLeftOffset = mFirstLeftOffset - mDeltaX * OFFSET_MULTIPLE;
+    }
+
+    /**
+     * @return 偏移的循环范围，取不小于控件宽度的整数个周期，循环时波形是连续的
+     */
+    private int getWaveSpan() {
+        int period = mDeltaX * 4;
+        return period > 0 ? Math.max(1, mWidth / period) * period : 0;
+    }
+
+    /**
+     * 开始播放动画，实际只在控件可见、窗口有焦点、有图片并且不在省电模式时执行
+     */
+    public void start() {
+        mStarted = true;
+        updateAnimation();
+    }
+
+    public void stop() {
+        mStarted = false;
+        updateAnimation();
+    }
+
+    /**
+     * @return 动画是否正在执行
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * 设置最大帧率，偏移是按时间计算的，降低帧率不影响波浪速度
+     *
+     * @param frameRate 0表示跟随屏幕刷新率
+     */
+    public void setMaxFrameRate(int frameRate) {
+        mMaxFrameRate = Math.max(0, frameRate);
+    }
+
+    /**
+     * 设置波浪线移动速度，与屏幕刷新率无关
+     *
+     * @param pxPerSecond 每秒移动的像素
+     */
+    public void setWaveSpeed(float pxPerSecond) {
+        mWaveSpeed = Math.max(0, pxPerSecond);
+    }
+
+    /**
+     * 设置是否与其他实例同步相位，同步时偏移由共享时钟计算，列表中多个控件的波浪一起起伏
+     */
+    public void setPhaseSync(boolean phaseSync) {
+        mPhaseSync = phaseSync;
     }
 
-    private int getScreenWidth(Context context) {
-        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-        if (wm != null) {
-            DisplayMetrics outMetric = new DisplayMetrics();
-            wm.getDefaultDisplay().getMetrics(outMetric);
-            return outMetric.widthPixels;
+    /**
+     * 根据当前状态开始或停止动画，状态可能变化的地方都要调用
+     */
+    private void updateAnimation() {
+        if (mTickerClient == null) {
+            // 父类构造方法中可能回调onVisibilityChanged，这时还没有初始化
+            return;
+        }
+        boolean shouldRun = mStarted && mAttached && mSrcDrawable != null && !mPowerSaveMode
+                && getWindowVisibility() == VISIBLE && isShown() && hasWindowFocus()
+                && getGlobalVisibleRect(mVisibleRect);
+        if (shouldRun == mRunning) {
+            return;
+        }
+        mRunning = shouldRun;
+        if (shouldRun) {
+            mLastFrameTimeNanos = 0;
+            WaveTicker.getInstance().register(mTickerClient);
+        } else {
+            WaveTicker.getInstance().unregister(mTickerClient);
+        }
+    }
+
+    /**
+     * 设置波浪线的绘制方式
+     *
+     * @param renderMode {@link #RENDER_MODE_PATH}或者{@link #RENDER_MODE_TILE}
+     */
+    public void setRenderMode(int renderMode) {
+        if (mRenderMode != renderMode) {
+            mRenderMode = renderMode;
+            if (renderMode != RENDER_MODE_TILE) {
+                releaseWaveTile();
+            }
+            invalidate();
         }
-        return -1;
     }
 
     /**
@@ -243,28 +690,218 @@ public class WaveImageView extends View {
         mEmptyColor = color;
     }
 
+    /**
+     * 直接显示调用方的bitmap，不会采样。大图建议用{@link #setImageFile(File)}等方法
+     */
     public void setBitmap(Bitmap bitmap) {
         if (bitmap != null) {
+            mImageSource = null;
+            releaseImageRequests();
             mSrcDrawable = new BitmapDrawable(mContext.getResources(), bitmap);
+            onImageChanged();
+            updateAnimation();
+            invalidate();
         }
     }
 
-    private class LeftOffsetRunnable implements Runnable {
+    /**
+     * 在子线程解码，按控件尺寸采样，结果在所有WaveImageView之间共享缓存
+     */
+    public void setImageResource(@DrawableRes int resId) {
+        setImageSource(WaveImageLoader.Source.ofResource(mContext, resId));
+    }
+
+    public void setImageFile(File file) {
+        setImageSource(WaveImageLoader.Source.ofFile(file));
+    }
 
-        @Override
-        public void run() {
-            int offset = Math.min(-mFirstLeftOffset, mWaveSpeed);
-            mFirstLeftOffset += offset;
-            if (mFirstLeftOffset == 0) {
-                mFirstLeftOffset = -mScreenWidth;
+    public void setImageUri(Uri uri) {
+        setImageSource(WaveImageLoader.Source.ofUri(uri));
+    }
+
+    private void setImageSource(WaveImageLoader.Source source) {
+        if (source.equals(mImageSource)) {
+            return;
+        }
+        mImageSource = source;
+        // 旧图片继续显示，直到新图片加载完成
+        WaveImageLoader.release(mPendingRequest);
+        mPendingRequest = null;
+        mRequestedWidth = 0;
+        mRequestedHeight = 0;
+        requestImage();
+    }
+
+    /**
+     * 控件有尺寸并且已经attach时才加载，尺寸变化后按新尺寸重新加载
+     */
+    private void requestImage() {
+        if (mImageSource == null || !mAttached || mWidth <= 0 || mHeight <= 0) {
+            return;
+        }
+        if (mRequestedWidth == mWidth && mRequestedHeight == mHeight) {
+            return;
+        }
+        mRequestedWidth = mWidth;
+        mRequestedHeight = mHeight;
+        WaveImageLoader.release(mPendingRequest);
+        mPendingRequest = null;
+        WaveImageLoader.Request request = WaveImageLoader.load(mContext, mImageSource, mWidth, mHeight, mImageCallback);
+        // 命中缓存时已经在load中回调过了
+        if (request != mDisplayedRequest) {
+            mPendingRequest = request;
+        }
+    }
+
+    /**
+     * detach时只取消还没完成的加载，正在显示的图片继续持有，
+     * 列表中滑出再滑回来时不用重新加载，也不会闪一下空白。
+     * 控件不再使用时随控件一起回收，被LRU淘汰的bitmap在还有引用时不会放进{@link BitmapPool}
+     */
+    private void cancelPendingRequest() {
+        if (mPendingRequest == null) {
+            return;
+        }
+        WaveImageLoader.release(mPendingRequest);
+        mPendingRequest = null;
+        // attach后重新发起
+        mRequestedWidth = 0;
+        mRequestedHeight = 0;
+    }
+
+    /**
+     * 换图时调用，释放之后缓存中的bitmap可能被复用，不能再绘制
+     */
+    private void releaseImageRequests() {
+        WaveImageLoader.release(mPendingRequest);
+        WaveImageLoader.release(mDisplayedRequest);
+        mPendingRequest = null;
+        mDisplayedRequest = null;
+        mRequestedWidth = 0;
+        mRequestedHeight = 0;
+        if (mImageSource != null) {
+            mSrcDrawable = null;
+            onImageChanged();
+        }
+    }
+
+    private static boolean isBitmapResource(TypedArray array, int index) {
+        TypedValue value = array.peekValue(index);
+        if (value == null || value.resourceId == 0 || value.string == null) {
+            return false;
+        }
+        String path = value.string.toString().toLowerCase();
+        if (path.endsWith(".9.png")) {
+            return false;
+        }
+        return path.endsWith(".png") || path.endsWith(".jpg") || path.endsWith(".jpeg")
+                || path.endsWith(".webp") || path.endsWith(".bmp");
+    }
+
+    /**
+     * 按帧时间推进偏移，偏移取整后没有变化时不重绘
+     *
+     * @param frameTimeNanos 当前帧的开始时间
+     */
+    private void onFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+        if (mLastFrameTimeNanos == 0) {
+            mLastFrameTimeNanos = frameTimeNanos;
+            return;
+        }
+        long elapsed = frameTimeNanos - mLastFrameTimeNanos;
+        if (mMaxFrameRate > 0) {
+            // 留1/4帧的余量，避免帧时间抖动导致本该绘制的帧被跳过
+            long interval = NANOS_PER_SECOND / mMaxFrameRate;
+            if (elapsed < interval - interval / 4) {
+                return;
             }
-            mSecondLeftOffset = mFirstLeftOffset - mDeltaX * OFFSET_MULTIPLE;
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
 
-            invalidate();
+        // 偏移的取值范围是[-span, 0)
+        int span = getWaveSpan();
+        if (span <= 0) {
+            return;
+        }
+        if (mPhaseSync) {
+            double distance = mWaveSpeed * WaveTicker.getInstance().getElapsedSeconds();
+            mFirstOffsetExact = (float) (-span + distance % span);
+        } else {
+            mFirstOffsetExact += mWaveSpeed * elapsed / NANOS_PER_SECOND;
+            if (mFirstOffsetExact >= 0) {
+                mFirstOffsetExact = -span + mFirstOffsetExact % span;
+            }
+        }
 
-            ViewCompat.postOnAnimation(WaveImageView.this, this);
+        int offset = (int) Math.floor(mFirstOffsetExact);
+        if (offset == mFirstLeftOffset) {
+            return;
         }
+        mFirstLeftOffset = offset;
+        mSecondLeftOffset = mFirstLeftOffset - mDeltaX * OFFSET_MULTIPLE;
+        invalidateWave();
     }
 
+    /**
+     * 把图片和波浪线分别录制在控件自己持有的RenderNode中：
+     * 1. 图片的RenderNode使用合成层，只在图片或尺寸变化后重新录制并光栅化一次，之后每帧只是合成这个层；
+     * 2. 波浪线的RenderNode只有底部mWaveHeight高，每帧重新录制，光栅化的只是这个区域。
+     * 控件本身的display list每帧仍然会重新录制，但其中只有两个drawRenderNode操作
+     */
+    @TargetApi(Build.VERSION_CODES.Q)
+    private class WaveLayers {
+
+        private final RenderNode mImageNode = new RenderNode("WaveImageView#image");
+
+        private final RenderNode mWaveNode = new RenderNode("WaveImageView#wave");
+
+        private boolean mImageDirty = true;
+
+        WaveLayers() {
+            mImageNode.setUseCompositingLayer(true, null);
+        }
+
+        boolean isSupported(Canvas canvas) {
+            return canvas.isHardwareAccelerated() && canvas instanceof RecordingCanvas;
+        }
 
+        void draw(Canvas canvas) {
+            RecordingCanvas recordingCanvas = (RecordingCanvas) canvas;
+            if (mImageDirty || !mImageNode.hasDisplayList()) {
+                mImageNode.setPosition(0, 0, mWidth, mHeight);
+                RecordingCanvas imageCanvas = mImageNode.beginRecording(mWidth, mHeight);
+                try {
+                    drawImage(imageCanvas);
+                } finally {
+                    mImageNode.endRecording();
+                }
+                mImageDirty = false;
+            }
+            recordingCanvas.drawRenderNode(mImageNode);
+
+            final int top = Math.max(0, mHeight - mWaveHeight);
+            mWaveNode.setPosition(0, top, mWidth, mHeight);
+            RecordingCanvas waveCanvas = mWaveNode.beginRecording(mWidth, mHeight - top);
+            try {
+                //波浪线的绘制逻辑使用控件的坐标系
+                waveCanvas.translate(0, -top);
+                drawWave(waveCanvas);
+            } finally {
+                mWaveNode.endRecording();
+            }
+            recordingCanvas.drawRenderNode(mWaveNode);
+        }
+
+        /**
+         * display list和合成层持有bitmap的引用，图片变化后马上丢弃，旧bitmap才能被复用
+         */
+        void release() {
+            mImageNode.discardDisplayList();
+            mWaveNode.discardDisplayList();
+            mImageDirty = true;
+        }
+    }
 }
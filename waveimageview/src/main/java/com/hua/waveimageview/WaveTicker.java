@@ -0,0 +1,264 @@
+package com.hua.waveimageview;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.view.Choreographer;
+import android.view.animation.AnimationUtils;
+
+import java.util.ArrayList;
+
+/**
+ * 所有WaveImageView共用的动画时钟，只在主线程使用。
+ * <p>
+ * 不管有多少个控件在播放动画，每帧只注册一次帧回调，时间也只计算一次，再分发给注册的控件。
+ * {@link #getElapsedSeconds()}从第一个控件开始动画时算起，控件按它计算偏移时，
+ * 速度和周期相同的波浪线相位是一致的。
+ * <p>
+ * 省电模式的广播也在这里统一监听，整个进程只注册一个BroadcastReceiver，再分发给注册的控件。
+ *
+ * @author hua
+ * @version 2020/3/27 14:30
+ */
+
+final class WaveTicker {
+
+    interface Client {
+        /**
+         * 每帧回调一次
+         *
+         * @param frameTimeNanos 当前帧的开始时间
+         */
+        void onFrame(long frameTimeNanos);
+    }
+
+    interface PowerSaveListener {
+        /**
+         * 省电模式变化时回调，在主线程
+         */
+        void onPowerSaveModeChanged(boolean powerSaveMode);
+    }
+
+    /**
+     * API 16以下没有Choreographer时的帧间隔
+     */
+    private static final long FALLBACK_FRAME_DELAY_MS = 16;
+
+    private static WaveTicker sInstance;
+
+    private final ArrayList<Client> mClients = new ArrayList<>();
+
+    /**
+     * 分发时使用的快照，回调中注册、反注册不影响本帧的分发
+     */
+    private Client[] mDispatching = new Client[0];
+
+    private final FrameSource mFrameSource;
+
+    private boolean mScheduled;
+
+    /**
+     * 共享相位的起点，第一次收到帧回调时确定
+     */
+    private long mOriginNanos;
+
+    private double mElapsedSeconds;
+
+    private final ArrayList<PowerSaveListener> mPowerSaveListeners = new ArrayList<>();
+
+    private PowerSaveListener[] mPowerSaveDispatching = new PowerSaveListener[0];
+
+    private boolean mPowerSaveMode;
+
+    /**
+     * 有监听者时才注册，注册在Application上，不会因为某个Activity销毁而失效
+     */
+    private Context mAppContext;
+
+    private BroadcastReceiver mPowerSaveReceiver;
+
+    private WaveTicker() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mFrameSource = new ChoreographerSource();
+        } else {
+            mFrameSource = new HandlerSource();
+        }
+    }
+
+    static WaveTicker getInstance() {
+        if (sInstance == null) {
+            sInstance = new WaveTicker();
+        }
+        return sInstance;
+    }
+
+    void register(Client client) {
+        if (mClients.contains(client)) {
+            return;
+        }
+        mClients.add(client);
+        if (!mScheduled) {
+            mScheduled = true;
+            mFrameSource.post();
+        }
+    }
+
+    void unregister(Client client) {
+        mClients.remove(client);
+        if (mClients.isEmpty() && mScheduled) {
+            mScheduled = false;
+            mFrameSource.cancel();
+        }
+    }
+
+    /**
+     * 添加省电模式的监听，第一个监听者添加时注册广播
+     *
+     * @return 当前是否处于省电模式
+     */
+    boolean addPowerSaveListener(Context context, PowerSaveListener listener) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        if (!mPowerSaveListeners.contains(listener)) {
+            mPowerSaveListeners.add(listener);
+        }
+        if (mPowerSaveReceiver == null) {
+            registerPowerSaveReceiver(context);
+        }
+        return mPowerSaveMode;
+    }
+
+    /**
+     * 最后一个监听者移除时反注册广播
+     */
+    void removePowerSaveListener(PowerSaveListener listener) {
+        mPowerSaveListeners.remove(listener);
+        if (mPowerSaveListeners.isEmpty() && mPowerSaveReceiver != null) {
+            mAppContext.unregisterReceiver(mPowerSaveReceiver);
+            mPowerSaveReceiver = null;
+            mAppContext = null;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void registerPowerSaveReceiver(Context context) {
+        Context appContext = context.getApplicationContext();
+        if (appContext == null) {
+            appContext = context;
+        }
+        final PowerManager pm = (PowerManager) appContext.getSystemService(Context.POWER_SERVICE);
+        if (pm == null) {
+            return;
+        }
+        mPowerSaveMode = pm.isPowerSaveMode();
+        mPowerSaveReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                boolean powerSaveMode = pm.isPowerSaveMode();
+                if (powerSaveMode != mPowerSaveMode) {
+                    mPowerSaveMode = powerSaveMode;
+                    dispatchPowerSaveModeChanged();
+                }
+            }
+        };
+        appContext.registerReceiver(mPowerSaveReceiver,
+                new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED));
+        mAppContext = appContext;
+    }
+
+    private void dispatchPowerSaveModeChanged() {
+        int size = mPowerSaveListeners.size();
+        mPowerSaveDispatching = mPowerSaveListeners.toArray(mPowerSaveDispatching);
+        for (int i = 0; i < size; i++) {
+            PowerSaveListener listener = mPowerSaveDispatching[i];
+            mPowerSaveDispatching[i] = null;
+            listener.onPowerSaveModeChanged(mPowerSaveMode);
+        }
+    }
+
+    /**
+     * @return 当前帧距共享起点的时间，单位秒
+     */
+    double getElapsedSeconds() {
+        return mElapsedSeconds;
+    }
+
+    private void doFrame(long frameTimeNanos) {
+        mScheduled = false;
+        int size = mClients.size();
+        if (size == 0) {
+            return;
+        }
+        if (mOriginNanos == 0) {
+            mOriginNanos = frameTimeNanos;
+        }
+        mElapsedSeconds = (frameTimeNanos - mOriginNanos) / 1e9;
+
+        mScheduled = true;
+        mFrameSource.post();
+
+        mDispatching = mClients.toArray(mDispatching);
+        for (int i = 0; i < size; i++) {
+            Client client = mDispatching[i];
+            mDispatching[i] = null;
+            client.onFrame(frameTimeNanos);
+        }
+    }
+
+    private interface FrameSource {
+        void post();
+
+        void cancel();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class ChoreographerSource implements FrameSource, Choreographer.FrameCallback {
+
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        @Override
+        public void post() {
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void cancel() {
+            mChoreographer.removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            WaveTicker.this.doFrame(frameTimeNanos);
+        }
+    }
+
+    /**
+     * API 16以下用动画时间代替帧时间
+     */
+    private class HandlerSource implements FrameSource, Runnable {
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void post() {
+            mHandler.postDelayed(this, FALLBACK_FRAME_DELAY_MS);
+        }
+
+        @Override
+        public void cancel() {
+            mHandler.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            doFrame(AnimationUtils.currentAnimationTimeMillis() * 1000000L);
+        }
+    }
+}